@@ -0,0 +1,66 @@
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/* plays a machine's sound on the default audio device. the machine's
+   thread only swaps in the latest tone; a thread of its own renders
+   quarter frame blocks and writes them to a line holding about a frame,
+   so what is heard trails the emulation by little more than a frame */
+public class AudioOutput implements SoundSink {
+    private static final int SAMPLE_RATE = 44100;
+
+    private final SourceDataLine line;
+    private final ToneRenderer renderer = new ToneRenderer(SAMPLE_RATE);
+    private final Thread thread;
+    private volatile Tone tone = Tone.SILENCE;
+    private volatile boolean enabled = true;
+    private volatile float volume = 0.5f;
+    private volatile boolean closed = false;
+
+    public AudioOutput() throws LineUnavailableException {
+	AudioFormat fmt = new AudioFormat(SAMPLE_RATE, 16, 1, true, false);
+	line = AudioSystem.getSourceDataLine(fmt);
+	line.open(fmt, renderer.frameSamples() * 2);
+	line.start();
+	thread = new Thread(this::play, "audio");
+	thread.setDaemon(true);
+	thread.setPriority(Thread.MAX_PRIORITY);
+	thread.start();
+    }
+
+    public void frame(Tone t) {
+	tone = t;
+    }
+
+    private void play() {
+	int block = renderer.frameSamples() / 4;
+	byte[] buf = new byte[block * 2];
+	while (!closed) {
+	    renderer.render(enabled ? tone : Tone.SILENCE, volume, buf, 0, block);
+	    line.write(buf, 0, buf.length); //waits while the line is full, which paces this thread
+	}
+	line.close();
+    }
+
+    public void setEnabled(boolean enabled) {
+	this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+	return enabled;
+    }
+
+    /* 0 to 1 */
+    public void setVolume(float volume) {
+	this.volume = Math.max(0, Math.min(1, volume));
+    }
+
+    public float getVolume() {
+	return volume;
+    }
+
+    public void close() {
+	closed = true;
+    }
+}
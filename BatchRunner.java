@@ -0,0 +1,211 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* runs ROMs headless, without touching AWT, and writes one summary line
+   per ROM. usage:
+   java BatchRunner [-n instructions | -f frames] [-j workers] [-c compat]
+                    [-r cycles] [-s seed] [-p profile dir] [-t trace dir]
+                    [-a audio dir] [-v video dir] [-V gif|png|c8f]
+                    [-o summary.csv] <rom or directory>...
+   with -p each ROM is profiled, into <rom>.folded and <rom>.folded.csv,
+   with -t every instruction is traced into <rom>.c8t, with -a its sound
+   is written to <rom>.wav and with -v its screen to <rom>.gif, or to
+   the format -V gives. nothing is dropped from a video here; the run
+   waits for the encoder instead */
+public class BatchRunner {
+    private long instructions = 0;
+    private long frames = 60 * 60;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private CPU.CompatLevel compat = CPU.CompatLevel.CHIP_48;
+    private int cycles = 700;
+    private long seed = 0;
+    private String output = null;
+    private File profiles = null;
+    private File traces = null;
+    private File audio = null;
+    private File video = null;
+    private String videoFormat = "gif";
+    private List<File> roms = new ArrayList<>();
+
+    public static class Result {
+	public final File rom;
+	public long instructions;
+	public long frames;
+	public long screenHash;
+	public int pc;
+	public int[] unimplemented = new int[0];
+	public long wallNanos;
+	public String error;
+
+	Result(File rom) {
+	    this.rom = rom;
+	}
+
+	public String toString() {
+	    StringBuilder ops = new StringBuilder();
+	    for (int op : unimplemented)
+		ops.append(ops.length() == 0 ? "" : " ").append(String.format("%04x", op));
+	    return String.format("%s,%d,%d,%016x,%03x,%s,%.3f,%s", rom.getPath(), instructions, frames,
+				 screenHash, pc, ops, wallNanos / 1e6, error == null ? "" : error);
+	}
+    }
+
+    public Result run(File rom) {
+	Result res = new Result(rom);
+	long start = System.nanoTime();
+	try {
+	    Machine m = new Machine(1);
+	    m.setCompatLevel(compat);
+	    m.setCycles(cycles);
+	    m.setSeed(seed);
+	    m.loadRom(rom.toPath());
+	    if (profiles != null)
+		m.startProfiling();
+	    if (traces != null)
+		m.startTrace(new File(traces, rom.getName() + ".c8t").toPath());
+	    WavSink wav = audio == null ? null : new WavSink();
+	    m.setSound(wav);
+	    if (video != null) {
+		File f = new File(video, rom.getName() + "." + videoFormat);
+		m.startExport(new FrameRecorder(FrameEncoder.open(f.toPath(), 2), false));
+	    }
+	    if (instructions > 0)
+		m.runInstructions(instructions);
+	    else
+		m.runFrames(frames);
+	    m.stopTrace();
+	    m.stopExport();
+	    if (wav != null)
+		wav.write(new File(audio, rom.getName() + ".wav").toPath());
+
+	    CPU cpu = m.getCPU();
+	    res.instructions = cpu.getInstructionCount();
+	    res.frames = m.getFrames();
+	    res.screenHash = m.getScreen().hash();
+	    res.pc = cpu.getPC();
+	    res.unimplemented = cpu.getUnimplemented();
+	    if (m.getFault() != null)
+		res.error = m.getFault().getMessage().replace(',', ';');
+	    if (profiles != null) {
+		Profiler p = m.stopProfiling();
+		p.writeCollapsed(new File(profiles, rom.getName() + ".folded").toPath());
+		p.writeHeatmap(new File(profiles, rom.getName() + ".folded.csv").toPath());
+	    }
+	} catch (IOException | RuntimeException e) {
+	    res.error = e.toString().replace(',', ';');
+	}
+	res.wallNanos = System.nanoTime() - start;
+	return res;
+    }
+
+    public List<Result> runAll() throws InterruptedException {
+	ExecutorService pool = Executors.newFixedThreadPool(workers);
+	List<Future<Result>> pending = new ArrayList<>();
+	for (File rom : roms)
+	    pending.add(pool.submit(() -> run(rom)));
+	List<Result> results = new ArrayList<>();
+	try {
+	    for (Future<Result> f : pending)
+		results.add(f.get());
+	} catch (java.util.concurrent.ExecutionException e) {
+	    throw new IllegalStateException(e.getCause());
+	} finally {
+	    pool.shutdown();
+	}
+	return results;
+    }
+
+    private void addRoms(File f) {
+	if (f.isDirectory()) {
+	    File[] children = f.listFiles();
+	    Arrays.sort(children);
+	    for (File c : children)
+		addRoms(c);
+	} else {
+	    roms.add(f);
+	}
+    }
+
+    private static void usage() {
+	System.out.println("usage: java BatchRunner [-n instructions | -f frames] [-j workers] [-c compat]");
+	System.out.println("                        [-r cycles] [-s seed] [-p profile dir] [-t trace dir]");
+	System.out.println("                        [-a audio dir] [-v video dir] [-V gif|png|c8f]");
+	System.out.println("                        [-o summary.csv] <rom or directory>...");
+	System.out.println("compat is one of " + Arrays.toString(CPU.CompatLevel.values()));
+	System.exit(-1);
+    }
+
+    public static void main(String[] args) throws Exception {
+	System.setProperty("java.awt.headless", "true");
+	BatchRunner br = new BatchRunner();
+	try {
+	    for (int i = 0; i < args.length; i++) {
+		switch (args[i]) {
+		case "-n":
+		    br.instructions = Long.parseLong(args[++i]);
+		    break;
+		case "-f":
+		    br.frames = Long.parseLong(args[++i]);
+		    br.instructions = 0;
+		    break;
+		case "-j":
+		    br.workers = Integer.parseInt(args[++i]);
+		    break;
+		case "-c":
+		    br.compat = CPU.CompatLevel.valueOf(args[++i]);
+		    break;
+		case "-r":
+		    br.cycles = Integer.parseInt(args[++i]);
+		    break;
+		case "-s":
+		    br.seed = Long.parseLong(args[++i]);
+		    break;
+		case "-p":
+		    br.profiles = new File(args[++i]);
+		    break;
+		case "-t":
+		    br.traces = new File(args[++i]);
+		    break;
+		case "-a":
+		    br.audio = new File(args[++i]);
+		    break;
+		case "-v":
+		    br.video = new File(args[++i]);
+		    break;
+		case "-V":
+		    br.videoFormat = args[++i];
+		    if (!br.videoFormat.matches("gif|png|c8f"))
+			usage();
+		    break;
+		case "-o":
+		    br.output = args[++i];
+		    break;
+		default:
+		    br.addRoms(new File(args[i]));
+		    break;
+		}
+	    }
+	} catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+	    usage();
+	}
+	if (br.roms.isEmpty() || br.workers < 1 || br.cycles < 1)
+	    usage();
+
+	long start = System.nanoTime();
+	List<Result> results = br.runAll();
+	PrintStream out = br.output == null ? System.out : new PrintStream(br.output);
+	out.println("rom,instructions,frames,screen_hash,pc,unimplemented,wall_ms,error");
+	for (Result r : results)
+	    out.println(r);
+	if (out != System.out)
+	    out.close();
+	System.err.println(String.format("%d roms in %.1f ms", results.size(), (System.nanoTime() - start) / 1e6));
+    }
+}
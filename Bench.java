@@ -0,0 +1,258 @@
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/* throughput benchmarks for the interpreter, sprite drawing and rendering,
+   using only the jdk. each benchmark runs warmup iterations, then timed
+   ones, and the scores are written as json in the layout jmh's -rf json
+   produces, so the usual jmh tooling can read them. usage:
+   java Bench [-wi warmups] [-i iterations] [-t seconds] [-o results.json] [regex] */
+public class Bench {
+    private int warmups = 3;
+    private int iterations = 5;
+    private double seconds = 1.0;
+    private String output = "bench.json";
+    private Pattern filter = Pattern.compile(".*");
+
+    public static volatile long sink; //keeps results alive
+
+    /* one invocation of a benchmark, returning how many operations it did */
+    private interface Op {
+	long run();
+    }
+
+    private static class Result {
+	String name;
+	String unit;
+	double[] scores;
+	double mean;
+	double error;
+    }
+
+    private List<Result> results = new ArrayList<>();
+
+    private void bench(String name, String unit, Op op) {
+	if (!filter.matcher(name).find())
+	    return;
+	for (int i = 0; i < warmups; i++)
+	    iteration(op);
+	Result r = new Result();
+	r.name = name;
+	r.unit = unit;
+	r.scores = new double[iterations];
+	for (int i = 0; i < iterations; i++)
+	    r.scores[i] = iteration(op);
+	for (double s : r.scores)
+	    r.mean += s / iterations;
+	double var = 0;
+	for (double s : r.scores)
+	    var += (s - r.mean) * (s - r.mean) / Math.max(1, iterations - 1);
+	r.error = 3.29 * Math.sqrt(var / iterations); //99.9% interval, normal approximation
+	results.add(r);
+	System.out.println(String.format("%-32s %16.1f +- %12.1f %s", name, r.mean, r.error, unit));
+    }
+
+    private double iteration(Op op) {
+	long ops = 0;
+	long start = System.nanoTime();
+	long end = start + (long)(seconds * 1e9);
+	long now;
+	do {
+	    ops += op.run();
+	} while ((now = System.nanoTime()) < end);
+	return ops * 1e9 / (now - start);
+    }
+
+    private static byte[] assemble(int... ops) {
+	byte[] b = new byte[ops.length * 2];
+	for (int i = 0; i < ops.length; i++) {
+	    b[i * 2] = (byte)(ops[i] >>> 8);
+	    b[i * 2 + 1] = (byte)ops[i];
+	}
+	return b;
+    }
+
+    //synthetic roms, each an endless loop of one kind of work
+    private static final byte[] ALU_ROM = assemble(
+	0x6001, 0x6102, 0x8014, 0x8125, 0x8016, 0x811e, 0x7001, 0x8013,
+	0x8232, 0x8301, 0x8427, 0x8542, 0x1200);
+    private static final byte[] BRANCH_ROM = assemble(
+	0x3000, 0x7001, 0x4100, 0x7101, 0x5010, 0x7201, 0x9010, 0x7301,
+	0x2216, 0x1200, 0x0000, 0x00ee);
+    private static final byte[] DRAW_ROM = assemble(
+	0xa050, 0xd015, 0x7007, 0xd125, 0x7103, 0xa05a, 0xd01f, 0x1202);
+    private static final byte[] MEMORY_ROM = assemble(
+	0xa300, 0xf033, 0xf755, 0xf765, 0x7001, 0xa310, 0xf133, 0xff55,
+	0xff65, 0x1200);
+
+    private static Op romOp(byte[] rom) {
+	Machine m = new Machine(1);
+	m.setCycles(60 * 10000);
+	m.loadRom(rom);
+	return () -> {
+	    long before = m.getCPU().getInstructionCount();
+	    m.runFrames(10);
+	    return m.getCPU().getInstructionCount() - before;
+	};
+    }
+
+    /* a run of DXYN at the bottom right corner, so every sprite clips or wraps */
+    private static Op spriteOp(CPU.CompatLevel cl) {
+	Machine m = new Machine(1);
+	m.setCompatLevel(cl);
+	m.setCycles(60 * 10000);
+	int[] ops = new int[64];
+	ops[0] = 0x603c; //v0 = 60
+	ops[1] = 0x611c; //v1 = 28
+	ops[2] = 0xa050;
+	for (int i = 3; i < 63; i++)
+	    ops[i] = 0xd018;
+	ops[63] = 0x1206;
+	m.loadRom(assemble(ops));
+	return () -> {
+	    long before = m.getCPU().getInstructionCount();
+	    m.runFrames(10);
+	    return m.getCPU().getInstructionCount() - before;
+	};
+    }
+
+    /* 128x64 with 16x16 sprites at the bottom right corner and a scroll
+       every few draws, as scrolling SCHIP games do */
+    private static Op hiresOp() {
+	Machine m = new Machine(1);
+	m.setCompatLevel(CPU.CompatLevel.SCHIP_1_1);
+	m.setCycles(60 * 10000);
+	int[] ops = new int[64];
+	ops[0] = 0x00ff; //high resolution
+	ops[1] = 0x6078; //v0 = 120
+	ops[2] = 0x613c; //v1 = 60
+	ops[3] = 0xa050;
+	for (int i = 4; i < 63; i++)
+	    ops[i] = i % 8 == 0 ? 0x00c1 : i % 8 == 4 ? 0x00fb : 0xd010;
+	ops[63] = 0x1208;
+	m.loadRom(assemble(ops));
+	return () -> {
+	    long before = m.getCPU().getInstructionCount();
+	    m.runFrames(10);
+	    return m.getCPU().getInstructionCount() - before;
+	};
+    }
+
+    private static MachineScreen noisyScreen(int scale) {
+	MachineScreen s = new MachineScreen(scale);
+	Random r = new Random(64);
+	for (int i = 0; i < 1024; i++)
+	    s.setPixel(r.nextInt(64), r.nextInt(32), 1);
+	return s;
+    }
+
+    public void runAll() {
+	bench("rom.alu", "instr/s", romOp(ALU_ROM));
+	bench("rom.branch", "instr/s", romOp(BRANCH_ROM));
+	bench("rom.draw", "instr/s", romOp(DRAW_ROM));
+	bench("rom.memory", "instr/s", romOp(MEMORY_ROM));
+	for (CPU.CompatLevel cl : CPU.CompatLevel.values())
+	    bench("sprite.edge." + cl, "instr/s", spriteOp(cl));
+	bench("sprite.hires", "instr/s", hiresOp());
+
+	MachineScreen clearScreen = new MachineScreen(1);
+	bench("screen.clear", "ops/s", () -> {
+		for (int i = 0; i < 1000; i++) {
+		    clearScreen.setPixel(i, i, 1);
+		    clearScreen.clear();
+		}
+		return 1000;
+	    });
+
+	//the renderer's path: refill the raster from a frame, then scale it
+	//out; the two frames differ in every row so all of them are refilled
+	MachineScreen drawScreen = noisyScreen(4);
+	long[][] drawFrames = new long[2][MachineScreen.WORDS + 1];
+	for (long[] f : drawFrames) {
+	    drawScreen.copyWords(f);
+	    f[MachineScreen.WORDS] = drawScreen.getFlags();
+	}
+	for (int i = 0; i < MachineScreen.WORDS; i++)
+	    drawFrames[1][i] = ~drawFrames[1][i];
+	DisplayPanel panel = new DisplayPanel(drawScreen);
+	BufferedImage img = new BufferedImage(drawScreen.getWidth(), drawScreen.getHeight(), BufferedImage.TYPE_INT_RGB);
+	Graphics2D g = img.createGraphics();
+	bench("screen.draw", "frames/s", new Op() {
+		int n = 0;
+		public long run() {
+		    panel.update(drawFrames[n++ & 1]);
+		    panel.present(g, img.getWidth(), img.getHeight());
+		    return 1;
+		}
+	    });
+	g.dispose();
+
+	MachineScreen hashScreen = noisyScreen(1);
+	bench("screen.hash", "ops/s", () -> {
+		sink += hashScreen.hash();
+		return 1;
+	    });
+    }
+
+    private static String json(String s) {
+	return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    public void write(PrintStream out) {
+	out.println("[");
+	for (int i = 0; i < results.size(); i++) {
+	    Result r = results.get(i);
+	    StringBuilder raw = new StringBuilder();
+	    for (double s : r.scores)
+		raw.append(raw.length() == 0 ? "" : ", ").append(s);
+	    out.println("    {");
+	    out.println("        \"benchmark\" : " + json("Bench." + r.name) + ",");
+	    out.println("        \"mode\" : \"thrpt\",");
+	    out.println("        \"threads\" : 1,");
+	    out.println("        \"warmupIterations\" : " + warmups + ",");
+	    out.println("        \"measurementIterations\" : " + iterations + ",");
+	    out.println("        \"measurementTime\" : " + json(seconds + " s") + ",");
+	    out.println("        \"primaryMetric\" : {");
+	    out.println("            \"score\" : " + r.mean + ",");
+	    out.println("            \"scoreError\" : " + r.error + ",");
+	    out.println("            \"scoreUnit\" : " + json(r.unit) + ",");
+	    out.println("            \"rawData\" : [ [ " + raw + " ] ]");
+	    out.println("        }");
+	    out.println("    }" + (i + 1 < results.size() ? "," : ""));
+	}
+	out.println("]");
+    }
+
+    public static void main(String[] args) throws Exception {
+	System.setProperty("java.awt.headless", "true");
+	Bench b = new Bench();
+	for (int i = 0; i < args.length; i++) {
+	    switch (args[i]) {
+	    case "-wi":
+		b.warmups = Integer.parseInt(args[++i]);
+		break;
+	    case "-i":
+		b.iterations = Integer.parseInt(args[++i]);
+		break;
+	    case "-t":
+		b.seconds = Double.parseDouble(args[++i]);
+		break;
+	    case "-o":
+		b.output = args[++i];
+		break;
+	    default:
+		b.filter = Pattern.compile(args[i]);
+		break;
+	    }
+	}
+	b.runAll();
+	try (PrintStream out = new PrintStream(b.output)) {
+	    b.write(out);
+	}
+	System.out.println("results written to " + b.output);
+    }
+}
@@ -1,18 +1,36 @@
-import java.awt.event.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
 
-public class CPU implements ActionListener {
-    private byte[] memory = new byte[4096];
+public class CPU {
+    public static final int MEM_SIZE = 0x10000; //XO-CHIP's, the others use the first 4 KB
+    private byte[] memory = new byte[MEM_SIZE];
+    private int memMask = 0xfff; //addresses wrap at the top of the current memory size
     
-    private short pc;
-    private short ir;
+    private int pc;
+    private int ir;
     private byte delay_timer;
     private byte sound_timer;
     private byte[] registers = new byte[16];
     private short[] stack = new short[16];
     private int sp;
+    private byte[] pattern = new byte[16]; //XO-CHIP's F002 audio pattern
+    private boolean patternSet; //until F002 the buzzer sounds
+    private int pitch = 64; //FX3A
+    private int soundChanges = 0; //pattern and pitch writes, for noticing them cheaply
 
-    private boolean isDebug = false;
-    private final int MEM_MAX = 4096;
+
+    /* what an access past the top of memory does: wrap around, call the
+       trap hook and then wrap, or fault the machine */
+    public enum OutOfBounds {
+	WRAP, TRAP, FAULT
+    }
+    private OutOfBounds outOfBounds = OutOfBounds.FAULT;
+    private MemoryTrap trap = null;
+
+    public interface MemoryTrap {
+	void outOfBounds(CPU c, int address, boolean write);
+    }
 
     private MachineScreen screen;
     private KeyPad keypad;
@@ -21,6 +39,58 @@ public class CPU implements ActionListener {
 	CHIP_8, CHIP_48, SCHIP_1_0, SCHIP_1_1, XOCHIP
     }
     private CompatLevel compat;
+    private Instr[] table = tableFor(CompatLevel.CHIP_48);
+
+    private Block[] blocks = new Block[MEM_SIZE];
+    private byte[] blockCover = new byte[MEM_SIZE]; //blocks overlapping each address
+
+    private boolean idle;
+    private byte idleDelay;
+    private int idleKeys;
+    private byte[] idleRegs = new byte[16];
+    private boolean waiting; //in FX0A, which stays at pc until it has its key
+    private int waitRegister;
+    private int waitKey; //the key it is waiting to see released, or -1
+    private int waitKeys; //keypad changes when it last looked
+    private static final int IDLE_MAX = 8; //longest polling loop recognized, in instructions
+
+    private int tickPeriod = 700 / Scheduler.FPS; //instructions per timer tick, rounded down
+    private int tickExtra = 700 % Scheduler.FPS; //what rounding drops, carried like the scheduler's remainder
+    private int tickCarry = 0;
+    private int untilTick = tickPeriod;
+    private long instructions = 0;
+    private long[] opClassCounts = new long[16]; //by top nibble, cached blocks' runs aside
+    private Profiler profiler = null;
+    private TraceRecorder tracer = null;
+    private Debugger debugger = null;
+    private boolean stepped = false; //something needs to see every instruction
+    private int accessLimit = 0xfff; //highest address a data access reaches without the slow path
+    private long rng = 1; //xorshift state, never zero
+
+    private BitSet unimplementedHit = new BitSet();
+
+    public static final int PAGE_SIZE = 256;
+    private long[] dirtyPages = new long[MEM_SIZE / PAGE_SIZE / 64];
+
+    public static final int FONT_START = 0x50;
+    private static final byte[] FONT = {
+	(byte)0xf0, (byte)0x90, (byte)0x90, (byte)0x90, (byte)0xf0, //0
+	(byte)0x20, (byte)0x60, (byte)0x20, (byte)0x20, (byte)0x70, //1
+	(byte)0xf0, (byte)0x10, (byte)0xf0, (byte)0x80, (byte)0xf0, //2
+	(byte)0xf0, (byte)0x10, (byte)0xf0, (byte)0x10, (byte)0xf0, //3
+	(byte)0x90, (byte)0x90, (byte)0xf0, (byte)0x10, (byte)0x10, //4
+	(byte)0xf0, (byte)0x80, (byte)0xf0, (byte)0x10, (byte)0xf0, //5
+	(byte)0xf0, (byte)0x80, (byte)0xf0, (byte)0x90, (byte)0xf0, //6
+	(byte)0xf0, (byte)0x10, (byte)0x20, (byte)0x40, (byte)0x40, //7
+	(byte)0xf0, (byte)0x90, (byte)0xf0, (byte)0x90, (byte)0xf0, //8
+	(byte)0xf0, (byte)0x90, (byte)0xf0, (byte)0x10, (byte)0xf0, //9
+	(byte)0xf0, (byte)0x90, (byte)0xf0, (byte)0x90, (byte)0x90, //a
+	(byte)0xe0, (byte)0x90, (byte)0xe0, (byte)0x90, (byte)0xe0, //b
+	(byte)0xf0, (byte)0x80, (byte)0x80, (byte)0x80, (byte)0xf0, //c
+	(byte)0xe0, (byte)0x90, (byte)0x90, (byte)0x90, (byte)0xe0, //d
+	(byte)0xf0, (byte)0x80, (byte)0xf0, (byte)0x80, (byte)0xf0, //e
+	(byte)0xf0, (byte)0x80, (byte)0xf0, (byte)0x80, (byte)0x80  //f
+    };
     
     public CPU() {
 	this.pc = 0x200;
@@ -36,6 +106,7 @@ public class CPU implements ActionListener {
 	    s = 0;
 	this.screen = null;
 	this.compat = CompatLevel.CHIP_48;
+	load(FONT, FONT_START); //default font, a font file can still be loaded over it
     }
 
     public void reset() {
@@ -44,18 +115,281 @@ public class CPU implements ActionListener {
 	this.delay_timer = 0;
 	this.sound_timer = 0;
 	this.sp = 0;
-	for (byte b : registers)
-	    b = 0;
+	Arrays.fill(registers, (byte)0);
 	//for (byte b : memory)
 	//b = 0;
-	for (short s : stack)
-	    s = 0;
-	screen.clear();
+	Arrays.fill(stack, (short)0);
+	Arrays.fill(pattern, (byte)0);
+	this.patternSet = false;
+	this.pitch = 64;
+	this.soundChanges++;
+	this.untilTick = tickPeriod;
+	this.tickCarry = 0;
+	this.idle = false;
+	this.waiting = false;
+	if (profiler != null)
+	    profiler.reset();
+	screen.reset();
     }
     
-    public void actionPerformed(ActionEvent e) {
-	delay_timer -= (delay_timer > 0) ? 1 : 0;
-	sound_timer -= (sound_timer > 0) ? 1 : 0;
+    /* appends the complete cpu state to buf; only the memory the current
+       compat level can address is saved */
+    public void snapshot(ByteBuffer buf) {
+	snapshotRegisters(buf);
+	buf.put(memory, 0, memMask + 1);
+    }
+
+    /* reads back what snapshot() wrote */
+    public void restore(ByteBuffer buf) {
+	restoreRegisters(buf);
+	buf.get(memory, 0, memMask + 1);
+	flushBlocks();
+	Arrays.fill(dirtyPages, 0);
+    }
+
+    //what snapshotRegisters() writes
+    public static final int REGISTERS_SIZE = 1 + 2 + 2 + 1 + 1 + 1 + 16 + 16 * 2 + 4 + 4 + 1 + 1 + 8 + 8 + 16 + 1 + 1;
+
+    /* what snapshot() writes at the given compat level */
+    public static int stateSize(CompatLevel cl) {
+	return REGISTERS_SIZE + memorySize(cl);
+    }
+
+    private static int memorySize(CompatLevel cl) {
+	return cl == CompatLevel.XOCHIP ? MEM_SIZE : 0x1000;
+    }
+
+    /* everything but memory */
+    public void snapshotRegisters(ByteBuffer buf) {
+	buf.put((byte)compat.ordinal());
+	buf.putShort((short)pc);
+	buf.putShort((short)ir);
+	buf.put(delay_timer);
+	buf.put(sound_timer);
+	buf.put((byte)sp);
+	buf.put(registers);
+	for (short s : stack)
+	    buf.putShort(s);
+	buf.putInt(tickPeriod);
+	buf.putInt(untilTick);
+	buf.put((byte)tickExtra);
+	buf.put((byte)tickCarry);
+	buf.putLong(instructions);
+	buf.putLong(rng);
+	buf.put(pattern);
+	buf.put((byte)(patternSet ? 1 : 0));
+	buf.put((byte)pitch);
+    }
+
+    public void restoreRegisters(ByteBuffer buf) {
+	CompatLevel cl = CompatLevel.values()[buf.get()];
+	if (cl != compat)
+	    setCompatLevel(cl);
+	pc = buf.getShort() & 0xffff;
+	ir = buf.getShort() & 0xffff;
+	delay_timer = buf.get();
+	sound_timer = buf.get();
+	sp = buf.get();
+	buf.get(registers);
+	for (int i = 0; i < stack.length; i++)
+	    stack[i] = buf.getShort();
+	tickPeriod = buf.getInt();
+	untilTick = buf.getInt();
+	tickExtra = buf.get();
+	tickCarry = buf.get();
+	instructions = buf.getLong();
+	rng = buf.getLong();
+	buf.get(pattern);
+	patternSet = buf.get() != 0;
+	pitch = buf.get() & 0xff;
+	soundChanges++;
+	idle = false;
+	waiting = false; //pc is still at the FX0A, which starts waiting again
+	if (profiler != null)
+	    profiler.reset(); //the calls that built this stack were never seen
+    }
+
+    /* memory is tracked in PAGE_SIZE pages; fills pages with those written
+       since the last call, in order, and returns how many there were */
+    public int takeDirtyPages(int[] pages) {
+	int n = 0;
+	for (int i = 0; i < dirtyPages.length; i++) {
+	    for (long d = dirtyPages[i]; d != 0; d &= d - 1)
+		pages[n++] = i * 64 + Long.numberOfTrailingZeros(d);
+	    dirtyPages[i] = 0;
+	}
+	return n;
+    }
+
+    public void clearDirtyPages() {
+	Arrays.fill(dirtyPages, 0);
+    }
+
+    private void markDirty(int address) {
+	int page = address / PAGE_SIZE;
+	dirtyPages[page >>> 6] |= 1L << page;
+    }
+
+    public void snapshotPage(ByteBuffer buf, int page) {
+	buf.put(memory, page * PAGE_SIZE, PAGE_SIZE);
+    }
+
+    public void restorePage(ByteBuffer buf, int page) {
+	int base = page * PAGE_SIZE;
+	buf.get(memory, base, PAGE_SIZE);
+	for (int a = base; a < base + PAGE_SIZE; a++)
+	    if (blockCover[a] != 0)
+		invalidateBlocks(a);
+    }
+
+    /* instructions from one tick to the next: the rounded down period,
+       plus one whenever the dropped fractions add up to a whole */
+    private int nextTickPeriod() {
+	tickCarry += tickExtra;
+	int period = tickPeriod + tickCarry / Scheduler.FPS;
+	tickCarry %= Scheduler.FPS;
+	return period;
+    }
+
+    /* one 60 Hz timer tick, driven from the instruction count by run() */
+    public void tick() {
+	if (delay_timer != 0) //unsigned, so values from 0x80 up count down too
+	    delay_timer--;
+	if (sound_timer != 0)
+	    sound_timer--;
+    }
+
+    /* timers tick every cycles / FPS instructions on average */
+    public void setCyclesPerSecond(int cycles) {
+	this.tickPeriod = Math.max(1, cycles / Scheduler.FPS);
+	this.tickExtra = cycles < Scheduler.FPS ? 0 : cycles % Scheduler.FPS;
+	if (untilTick > tickPeriod)
+	    untilTick = tickPeriod;
+    }
+
+    public int getPC() {
+	return pc & memMask;
+    }
+
+    /* the byte at address, wrapped, without going through the policy or
+       the debugger; for tools looking at memory */
+    public int peek(int address) {
+	return memory[address & memMask] & 0xff;
+    }
+
+    public int getRegister(int x) {
+	return registers[x] & 0xff;
+    }
+
+    public int getI() {
+	return ir;
+    }
+
+    public int getDelayTimer() {
+	return delay_timer & 0xff;
+    }
+
+    public int getSoundTimer() {
+	return sound_timer & 0xff;
+    }
+
+    /* the XO-CHIP audio pattern, or null while the buzzer is used */
+    public byte[] getPattern() {
+	return patternSet ? pattern.clone() : null;
+    }
+
+    public int getPitch() {
+	return pitch;
+    }
+
+    /* changes whenever the pattern or pitch may have */
+    public int getSoundChanges() {
+	return soundChanges;
+    }
+
+    /* how many return addresses are on the stack, and the i-th from the bottom */
+    public int getStackDepth() {
+	return sp;
+    }
+
+    public int getStackEntry(int i) {
+	return stack[i] & 0xffff;
+    }
+
+    /* bytes of memory at the current compat level */
+    public int getMemorySize() {
+	return memMask + 1;
+    }
+
+    public void setOutOfBounds(OutOfBounds policy) {
+	this.outOfBounds = policy;
+    }
+
+    public OutOfBounds getOutOfBounds() {
+	return outOfBounds;
+    }
+
+    /* called under the TRAP policy, on the thread running the cpu */
+    public void setTrap(MemoryTrap trap) {
+	this.trap = trap;
+    }
+
+    /* instructions executed since the cpu was created, idle time included */
+    public long getInstructionCount() {
+	return instructions;
+    }
+
+    /* adds the instructions executed so far, by top nibble of the opcode,
+       into dst. unlike getInstructionCount() this leaves out idle time.
+       blocks count whole runs and are only added up here, which walks the
+       cache, so call it now and then rather than every frame */
+    public void countOpClasses(long[] dst) {
+	for (int c = 0; c < 16; c++)
+	    dst[c] += opClassCounts[c];
+	for (Block b : blocks)
+	    if (b != null)
+		b.addCounts(dst);
+    }
+
+    /* CXNN draws from a per-cpu generator instead of Math.random(), so a
+       run with the same seed and the same input repeats exactly */
+    public void seed(long seed) {
+	rng = seed ^ 0x9e3779b97f4a7c15L;
+	if (rng == 0)
+	    rng = 1;
+    }
+
+    private int nextRandom() {
+	long r = rng;
+	r ^= r >>> 12;
+	r ^= r << 25;
+	r ^= r >>> 27;
+	rng = r;
+	return (int)((r * 0x2545f4914f6cdd1dL) >>> 56); //xorshift64*, top byte
+    }
+
+    /* 64 bit FNV-1a over registers, stack and memory; counters are left
+       out so runs that started at different times can be compared */
+    public long hash() {
+	long h = 0xcbf29ce484222325L;
+	for (byte b : registers) {
+	    h ^= b & 0xff;
+	    h *= 0x100000001b3L;
+	}
+	for (int a = 0; a <= memMask; a++) {
+	    h ^= memory[a] & 0xff;
+	    h *= 0x100000001b3L;
+	}
+	int[] words = { pc, ir, delay_timer, sound_timer, sp };
+	for (int w : words) {
+	    h ^= w & 0xffff;
+	    h *= 0x100000001b3L;
+	}
+	for (short st : stack) {
+	    h ^= st & 0xffff;
+	    h *= 0x100000001b3L;
+	}
+	return h;
     }
 
     public void setScreen(MachineScreen s) {
@@ -68,280 +402,830 @@ public class CPU implements ActionListener {
 
     public void setCompatLevel(CompatLevel cl) {
 	this.compat = cl;
+	this.table = tableFor(cl);
+	this.memMask = memorySize(cl) - 1;
+	pc &= memMask;
+	flushBlocks();
+	updateHooks();
     }
 
     public CompatLevel getCompatLevel() {
 	return compat;
     }
 
-    private void debugPrint(short opcode) {
-	System.out.println(String.format("%04x\npc: %04x ir: %04x delay: %02x sound: %02x",
-					 opcode, pc, ir, delay_timer, sound_timer));
-	for (byte i = 0; i < 16; i++)
-	    System.out.print(String.format("V%x: %02x ", i, registers[i]));
-	System.out.println();
+    /* applies the out of bounds policy to an access at address; returns
+       if the access should wrap */
+    private void outOfBounds(int address, boolean write) {
+	switch (outOfBounds) {
+	case FAULT:
+	    throw new MachineFault(String.format("out of bounds %s at %x", write ? "write" : "read", address),
+				   (pc - 2) & memMask);
+	case TRAP:
+	    if (trap != null)
+		trap.outOfBounds(this, address, write);
+	    break;
+	default:
+	    break;
+	}
     }
-    
-    public void writeMem(short address, byte data) {
-	if (address >= MEM_MAX || address < 0) {
-	    System.out.println("<ERROR> out of bounds write at " + address);
-	    System.exit(-1);
+
+    /* the slow path of every data access, taken past the top of memory or
+       while the debugger watches memory: applies the policy, tells the
+       debugger, and returns the address to use. addresses are never
+       negative, so the fast path is a single compare */
+    private int checkAccess(int address, boolean write) {
+	if ((address & ~memMask) != 0) {
+	    outOfBounds(address, write);
+	    address &= memMask;
 	}
+	if (debugger != null)
+	    debugger.access(address, write);
+	return address;
+    }
+
+    /* the same for len bytes from address; returns true if they wrap */
+    private boolean checkRange(int address, int len, boolean write) {
+	int last = address + len - 1;
+	boolean wraps = (last & ~memMask) != 0;
+	if (wraps)
+	    outOfBounds(last, write);
+	if (debugger != null)
+	    for (int i = 0; i < len; i++)
+		debugger.access((address + i) & memMask, write);
+	return wraps;
+    }
+
+    public void writeMem(int address, byte data) {
+	if (address > accessLimit)
+	    address = checkAccess(address, true);
+	store(address, data);
+    }
+
+    private void store(int address, byte data) {
 	memory[address] = data;
+	markDirty(address);
+	if (blockCover[address] != 0)
+	    invalidateBlocks(address);
+    }
+
+    /* copies a program or font image into memory at start */
+    public void load(byte[] data, int start) {
+	if (start < 0 || data.length > memMask + 1 - start)
+	    throw new IllegalArgumentException("data too large for emulated memory");
+	for (int i = 0; i < data.length; i++)
+	    store(start + i, data[i]);
     }
 
-    public byte readMem(short address) {
-	if (address >= MEM_MAX || address < 0) {
-	    System.out.println("<ERROR> out of bounds read at " + address);
-	    System.exit(-1);
+    public byte readMem(int address) {
+	if (address > accessLimit)
+	    address = checkAccess(address, false);
+	return memory[address];
+    }
+
+    /* len bytes at address into dst, a bulk FX65 or 5XY3 */
+    private void readRange(int address, byte[] dst, int off, int len) {
+	int end = address + len;
+	if (end - 1 > accessLimit && checkRange(address, len, false)) {
+	    address &= memMask;
+	    int first = Math.min(len, memMask + 1 - address);
+	    System.arraycopy(memory, address, dst, off, first);
+	    System.arraycopy(memory, 0, dst, off + first, len - first); //wrapped
+	    return;
 	}
-	return (byte)(memory[address] & 0xff);
+	System.arraycopy(memory, address, dst, off, len);
     }
-    
+
+    /* len bytes from src to memory at address, a bulk FX55 or 5XY2 */
+    private void writeRange(int address, byte[] src, int off, int len) {
+	int end = address + len;
+	if (end - 1 > accessLimit && checkRange(address, len, true)) {
+	    for (int i = 0; i < len; i++)
+		store((address + i) & memMask, src[off + i]);
+	    return;
+	}
+	System.arraycopy(src, off, memory, address, len);
+	markDirty(address);
+	markDirty(end - 1); //len is at most 16, so at most two pages
+	for (int a = address; a < end; a++)
+	    if (blockCover[a] != 0)
+		invalidateBlocks(a);
+    }
+
+    /* fetches are masked: pc wraps at the top of memory. only an
+       instruction straddling the top goes through the policy, and blocks
+       never reach it, so the block path has no check at all */
     public void step() {
-	short opcode = (short)((readMem(pc) << 8) | (readMem((short)(pc + 1)) & 0xff));
-	byte op = (byte)((opcode & 0xf000) >>> 12);
-	byte x = (byte)((opcode & 0x0f00) >>> 8);
-	byte y = (byte)((opcode & 0x00f0) >>> 4);
-	byte n = (byte)(opcode & 0x000f);
-	byte nn = (byte)(opcode & 0x00ff);
-	short nnn = (short)(opcode & 0x0fff);
-
-	if (isDebug)
-	    debugPrint(opcode);
-
-	pc += 2; //increment before execution so jmp won't be messed up
-	pc %= MEM_MAX;
-	
+	int p = pc & memMask;
+	int opcode = ((memory[p] & 0xff) << 8) | (memory[(p + 1) & memMask] & 0xff);
+
+	pc = (p + 2) & memMask; //increment before execution so jmp won't be messed up
+	if (p == memMask)
+	    outOfBounds(p + 1, false);
+
+	opClassCounts[opcode >>> 12]++;
+	table[opcode].exec(this);
+    }
+
+    /* true at an XO-CHIP F000 NNNN, which skips treat as one instruction */
+    private boolean isLong(int address) {
+	return compat == CompatLevel.XOCHIP && memory[address & memMask] == (byte)0xf0
+	    && memory[(address + 1) & memMask] == 0;
+    }
+
+    private void skip() {
+	pc += isLong(pc) ? 4 : 2;
+    }
+
+    /* runs the cached basic block starting at pc and returns how many
+       instructions were executed */
+    public int stepBlock() {
+	pc &= memMask;
+	Block b = blocks[pc];
+	if (b == null) {
+	    b = compileBlock(pc);
+	    if (b == null)
+		return stepOne();
+	}
+	Instr[] ops = b.ops;
+	for (int i = 0; i < ops.length; i++) {
+	    pc += 2;
+	    ops[i].exec(this);
+	    if (!b.valid) { //wrote over its own code
+		for (int k = 0; k <= i; k++)
+		    opClassCounts[b.classes[k]]++;
+		return i + 1;
+	    }
+	}
+	b.runs++;
+	return ops.length;
+    }
+
+    /* runs at least budget instructions, stopping after the block that
+       crosses it, and returns the count. the timers tick every
+       cycles/60 instructions. an idle cpu jumps straight to the next
+       tick, since it would only spin until then, and one waiting in FX0A
+       to the end of the frame, since the keys only change between frames */
+    public int run(int budget) {
+	if (stepped)
+	    return runStepped(budget);
+	int done = 0;
+	while (done < budget) {
+	    int n;
+	    if (waiting && stillWaiting())
+		n = budget - done;
+	    else if (idle && isIdle())
+		n = Math.min(untilTick, budget - done);
+	    else
+		n = stepBlock();
+	    done += n;
+	    instructions += n;
+	    untilTick -= n;
+	    while (untilTick <= 0) {
+		tick();
+		untilTick += nextTickPeriod();
+	    }
+	}
+	return done;
+    }
+
+    private int stepOne() {
+	step();
+	return 1;
+    }
+
+    /* counts instructions into the profiler; the profiler needs to see every
+       one, so this steps without the block cache */
+    public void setProfiler(Profiler profiler) {
+	this.profiler = profiler;
+	if (profiler != null)
+	    profiler.reset();
+	updateHooks();
+    }
+
+    public Profiler getProfiler() {
+	return profiler;
+    }
+
+    /* records every instruction executed into the trace, which, like the
+       profiler, means stepping without the block cache */
+    public void setTracer(TraceRecorder tracer) {
+	this.tracer = tracer;
+	updateHooks();
+    }
+
+    public TraceRecorder getTracer() {
+	return tracer;
+    }
+
+    /* the debugger is only consulted while it has something to stop on;
+       the rest of the time the cpu runs as if there were none */
+    public void setDebugger(Debugger debugger) {
+	this.debugger = debugger;
+	updateHooks();
+    }
+
+    public Debugger getDebugger() {
+	return debugger;
+    }
+
+    /* picks the run loop and the access limit for what is attached; the
+       debugger calls this whenever its breakpoints or watches change */
+    void updateHooks() {
+	boolean debugging = debugger != null && debugger.isActive();
+	stepped = profiler != null || tracer != null || debugging;
+	accessLimit = debugging && debugger.isWatching() ? -1 : memMask;
+    }
+
+    /* run() while profiling, tracing or debugging, kept apart so the usual
+       loop pays nothing for them. the debugger sees every pass of a
+       polling loop, so with one attached they are run, not skipped; an
+       FX0A is one instruction to it however long it waits */
+    private int runStepped(int budget) {
+	int done = 0;
+	while (done < budget) {
+	    int n;
+	    if (waiting && stillWaiting()) {
+		n = budget - done;
+		if (profiler != null)
+		    profiler.idle(n);
+	    } else if (idle && debugger == null && isIdle()) {
+		n = Math.min(untilTick, budget - done);
+		if (profiler != null)
+		    profiler.idle(n);
+	    } else {
+		if (debugger != null && debugger.shouldStop())
+		    break;
+		int p = pc & memMask;
+		if (tracer != null)
+		    trace(p);
+		if (profiler == null) {
+		    step();
+		} else {
+		    int hi = memory[p] & 0xff;
+		    boolean ret = hi == 0 && memory[(p + 1) & memMask] == (byte)0xee;
+		    profiler.count(p);
+		    step();
+		    if ((hi & 0xf0) == 0x20)
+			profiler.enter(pc);
+		    else if (ret)
+			profiler.leave();
+		}
+		n = 1;
+	    }
+	    done += n;
+	    instructions += n;
+	    untilTick -= n;
+	    while (untilTick <= 0) {
+		tick();
+		untilTick += nextTickPeriod();
+	    }
+	}
+	return done;
+    }
+
+    //one TraceRecorder record for the instruction at p, before it runs
+    private void trace(int p) {
+	ByteBuffer b = tracer.claim();
+	b.putLong(instructions);
+	b.putShort((short)p);
+	b.put(memory[p]);
+	b.put(memory[(p + 1) & memMask]);
+	b.putShort((short)ir);
+	b.put(delay_timer);
+	b.put(sound_timer);
+	b.put(registers);
+    }
+
+    /* a straight-line run of instructions ending at the first one that can
+       change control flow, cached by start address until its bytes are written */
+    private static final class Block {
+	final int start;
+	final int end;
+	final Instr[] ops;
+	final byte[] classes; //top nibble of each opcode
+	final int[] histogram = new int[16]; //instructions of each class
+	long runs = 0; //complete runs not yet added to the counts
+	boolean valid = true;
+
+	Block(int start, int end, Instr[] ops, byte[] classes) {
+	    this.start = start;
+	    this.end = end;
+	    this.ops = ops;
+	    this.classes = classes;
+	    for (byte c : classes)
+		histogram[c]++;
+	}
+
+	void addCounts(long[] dst) {
+	    for (int c = 0; c < 16; c++)
+		dst[c] += runs * histogram[c];
+	}
+    }
+
+    private static final int BLOCK_MAX = 32; //instructions
+
+    private static boolean endsBlock(int opcode) {
+	switch (opcode >>> 12) {
+	case 0x1: case 0x2: case 0x3: case 0x4: case 0x5: case 0x9: case 0xb: case 0xe:
+	    return true;
+	case 0x0:
+	    return opcode == 0x00ee;
+	case 0xf:
+	    return (opcode & 0xff) == 0x0a || opcode == 0xf000; //F000 reads its operand from pc
+	default:
+	    return false;
+	}
+    }
+
+    private Block compileBlock(int start) {
+	Instr[] ops = new Instr[BLOCK_MAX];
+	byte[] classes = new byte[BLOCK_MAX];
+	int len = 0;
+	int addr = start;
+	//the last word is left to step() so pc wraps the same way
+	while (len < BLOCK_MAX && addr + 2 <= memMask) {
+	    int opcode = ((memory[addr] & 0xff) << 8) | (memory[addr + 1] & 0xff);
+	    classes[len] = (byte)(opcode >>> 12);
+	    ops[len++] = table[opcode];
+	    addr += 2;
+	    if (endsBlock(opcode))
+		break;
+	}
+	if (len == 0)
+	    return null;
+	Block b = new Block(start, addr, Arrays.copyOf(ops, len), Arrays.copyOf(classes, len));
+	blocks[start] = b;
+	for (int a = start; a < addr; a++)
+	    blockCover[a]++;
+	return b;
+    }
+
+    private void invalidateBlocks(int address) {
+	for (int s = Math.max(0, address - BLOCK_MAX * 2 + 1); s <= address; s++) {
+	    Block b = blocks[s];
+	    if (b != null && b.end > address) {
+		b.addCounts(opClassCounts);
+		b.valid = false;
+		blocks[s] = null;
+		for (int a = b.start; a < b.end; a++)
+		    blockCover[a]--;
+	    }
+	}
+    }
+
+    private void flushBlocks() {
+	for (Block b : blocks) {
+	    if (b != null) {
+		b.addCounts(opClassCounts);
+		b.valid = false;
+	    }
+	}
+	Arrays.fill(blocks, null);
+	Arrays.fill(blockCover, (byte)0);
+    }
+
+    /* true while the cpu sits in a polling loop that cannot exit before the
+       delay timer or the keypad changes */
+    public boolean isIdle() {
+	if (idle && (delay_timer != idleDelay || keypad.getChanges() != idleKeys))
+	    idle = false;
+	return idle;
+    }
+
+    /* FX0A as on the VIP: waits for a key to be down, then for that key
+       to come back up, and only then stores it. nothing runs meanwhile,
+       but the timers go on ticking */
+    private void waitForKey(int x) {
+	pc -= 2;
+	waiting = true;
+	waitRegister = x;
+	waitKey = -1;
+	waitKeys = keypad.getChanges() - 1; //look at the keys already down
+    }
+
+    /* true while the cpu sits in FX0A, as of the end of the last frame */
+    public boolean isWaitingForKey() {
+	return waiting;
+    }
+
+    //once the key is released this stores it and moves pc past the FX0A
+    private boolean stillWaiting() {
+	if (!waiting || keypad.getChanges() == waitKeys)
+	    return waiting;
+	waitKeys = keypad.getChanges();
+	int keys = keypad.getLatched();
+	if (waitKey < 0) {
+	    if (keys == 0)
+		return true;
+	    waitKey = Integer.numberOfTrailingZeros(keys);
+	}
+	if ((keys & (1 << waitKey)) != 0)
+	    return true;
+	registers[waitRegister] = (byte)waitKey;
+	pc += 2;
+	waiting = false;
+	return false;
+    }
+
+    /* called after a backward jump: runs one more pass of the loop on scratch
+       registers, and if it only reads the delay timer and keys, compares, and
+       comes back to the jump with every register unchanged, it will spin
+       until one of those inputs changes */
+    private void checkIdle(int from) {
+	int start = pc;
+	if (from - start > IDLE_MAX * 2)
+	    return;
+	byte[] r = idleRegs;
+	System.arraycopy(registers, 0, r, 0, 16);
+	int p = start;
+	for (int n = 0; n <= IDLE_MAX; n++) {
+	    if (p < start || p > from || p + 1 > memMask)
+		return; //left the loop
+	    if (p == from) {
+		if (Arrays.equals(r, registers)) {
+		    idle = true;
+		    idleDelay = delay_timer;
+		    idleKeys = keypad.getChanges();
+		}
+		return;
+	    }
+	    int opcode = ((memory[p] & 0xff) << 8) | (memory[p + 1] & 0xff);
+	    int x = (opcode & 0x0f00) >>> 8;
+	    int y = (opcode & 0x00f0) >>> 4;
+	    byte nn = (byte)opcode;
+	    boolean skip;
+	    switch (opcode & 0xf00f) {
+	    case 0x5000:
+		skip = r[x] == r[y];
+		break;
+	    case 0x9000:
+		skip = r[x] != r[y];
+		break;
+	    default:
+		switch (opcode & 0xf0ff) {
+		case 0xf007:
+		    r[x] = delay_timer;
+		    skip = false;
+		    break;
+		case 0xe09e:
+		    skip = keypad.getKey(r[x]);
+		    break;
+		case 0xe0a1:
+		    skip = !keypad.getKey(r[x]);
+		    break;
+		default:
+		    switch (opcode & 0xf000) {
+		    case 0x3000:
+			skip = r[x] == nn;
+			break;
+		    case 0x4000:
+			skip = r[x] != nn;
+			break;
+		    default:
+			return; //has side effects
+		    }
+		}
+	    }
+	    p += skip ? (isLong(p + 2) ? 6 : 4) : 2;
+	}
+    }
+
+    /* every opcode is decoded once per compat level into a handler with its
+       operands already extracted, so step() is just fetch, lookup, execute */
+    private interface Instr {
+	void exec(CPU c);
+    }
+
+    private static final Instr[][] tables = new Instr[CompatLevel.values().length][];
+
+    private static synchronized Instr[] tableFor(CompatLevel cl) {
+	Instr[] t = tables[cl.ordinal()];
+	if (t == null) {
+	    t = new Instr[0x10000];
+	    for (int i = 0; i < t.length; i++)
+		t[i] = decode(i, cl);
+	    tables[cl.ordinal()] = t;
+	}
+	return t;
+    }
+
+    private static Instr unimplemented(int opcode) {
+	return c -> c.hitUnimplemented(opcode);
+    }
+
+    private void hitUnimplemented(int opcode) {
+	if (unimplementedHit.get(opcode))
+	    return; //only report each one once
+	unimplementedHit.set(opcode);
+	System.err.println(String.format("<ERROR> unimplemented opcode %04x", opcode));
+    }
+
+    /* the distinct unimplemented opcodes executed so far */
+    public int[] getUnimplemented() {
+	return unimplementedHit.stream().toArray();
+    }
+
+    private static Instr decode(int opcode, CompatLevel cl) {
+	final int op = (opcode & 0xf000) >>> 12;
+	final int x = (opcode & 0x0f00) >>> 8;
+	final int y = (opcode & 0x00f0) >>> 4;
+	final int n = opcode & 0x000f;
+	final byte nn = (byte)(opcode & 0x00ff);
+	final int nnn = opcode & 0x0fff;
+	final boolean quirkVF = cl == CompatLevel.CHIP_8;
+	final boolean quirkShift = cl != CompatLevel.CHIP_48 && cl != CompatLevel.SCHIP_1_0 &&
+	    cl != CompatLevel.SCHIP_1_1;
+
 	switch (op) {
 	case 0x0:
+	    boolean schip = cl.ordinal() >= CompatLevel.SCHIP_1_0.ordinal();
+	    boolean scroll = cl == CompatLevel.SCHIP_1_1 || cl == CompatLevel.XOCHIP;
 	    if (opcode == 0x00e0) {
-		screen.clear();
+		return c -> c.screen.clear();
 	    } else if (opcode == 0x00ee) {
-		if (--sp < 0)
-		    sp = 0;
-		pc = stack[sp];
-	    } else {
-		System.out.println(String.format("<ERROR> unimplemented opcode %04x", opcode));
+		return c -> {
+		    if (--c.sp < 0)
+			c.sp = 0;
+		    c.pc = c.stack[c.sp] & 0xffff;
+		};
+	    } else if (opcode == 0x00fe && schip) {
+		return c -> c.screen.setHires(false);
+	    } else if (opcode == 0x00ff && schip) {
+		return c -> c.screen.setHires(true);
+	    } else if (opcode == 0x00fb && scroll) {
+		return c -> c.screen.scrollRight(4);
+	    } else if (opcode == 0x00fc && scroll) {
+		return c -> c.screen.scrollLeft(4);
+	    } else if ((opcode & 0xfff0) == 0x00c0 && scroll) {
+		return c -> c.screen.scrollDown(n);
+	    } else if ((opcode & 0xfff0) == 0x00d0 && cl == CompatLevel.XOCHIP) {
+		return c -> c.screen.scrollUp(n);
 	    }
-	    break;
+	    return unimplemented(opcode);
 	case 0x1:
-	    if ((pc - 2) == nnn && isDebug) {
-		System.out.println("<DEBUG> infinite loop entered, quitting...");
-		System.exit(0);
-	    }
-	    pc = nnn;
-	    break;
+	    return c -> {
+		int from = c.pc - 2;
+		c.pc = nnn;
+		if (nnn <= from)
+		    c.checkIdle(from);
+	    };
 	case 0x2:
-	    stack[sp] = pc;
-	    if (++sp > 15)
-		sp = 15;
-	    pc = nnn;
-	    break;
+	    return c -> {
+		c.stack[c.sp] = (short)c.pc;
+		if (++c.sp > 15)
+		    c.sp = 15;
+		c.pc = nnn;
+	    };
 	case 0x3:
-	    if (registers[x] == nn)
-		pc += 2;
-	    break;
+	    return c -> {
+		if (c.registers[x] == nn)
+		    c.skip();
+	    };
 	case 0x4:
-	    if (registers[x] != nn)
-		pc += 2;
-	    break;
+	    return c -> {
+		if (c.registers[x] != nn)
+		    c.skip();
+	    };
 	case 0x5:
-	    if (registers[x] == registers[y])
-		pc += 2;
-	    break;
+	    if (cl == CompatLevel.XOCHIP && n == 0x2) {
+		if (x <= y)
+		    return c -> c.writeRange(c.ir, c.registers, x, y - x + 1);
+		return c -> {
+		    for (int i = 0; i <= x - y; i++)
+			c.writeMem(c.ir + i, c.registers[x - i]); //reversed
+		};
+	    } else if (cl == CompatLevel.XOCHIP && n == 0x3) {
+		if (x <= y)
+		    return c -> c.readRange(c.ir, c.registers, x, y - x + 1);
+		return c -> {
+		    for (int i = 0; i <= x - y; i++)
+			c.registers[x - i] = c.readMem(c.ir + i);
+		};
+	    }
+	    return c -> {
+		if (c.registers[x] == c.registers[y])
+		    c.skip();
+	    };
 	case 0x6:
-	    registers[x] = nn;
-	    break;
+	    return c -> c.registers[x] = nn;
 	case 0x7:
-	    registers[x] += nn;
-	    break;
+	    return c -> c.registers[x] += nn;
 	case 0x8:
 	    switch (n) {
 	    case 0x0:
-		registers[x] = registers[y];
-		break;
+		return c -> c.registers[x] = c.registers[y];
 	    case 0x1:
-		registers[x] |= registers[y];
-		if (compat == CompatLevel.CHIP_8)
-		    registers[0xf] = 0;
-		break;
+		if (quirkVF)
+		    return c -> {
+			c.registers[x] |= c.registers[y];
+			c.registers[0xf] = 0;
+		    };
+		return c -> c.registers[x] |= c.registers[y];
 	    case 0x2:
-		registers[x] &= registers[y];
-		if (compat == CompatLevel.CHIP_8)
-		    registers[0xf] = 0;
-		break;
+		if (quirkVF)
+		    return c -> {
+			c.registers[x] &= c.registers[y];
+			c.registers[0xf] = 0;
+		    };
+		return c -> c.registers[x] &= c.registers[y];
 	    case 0x3:
-		registers[x] ^= registers[y];
-		if (compat == CompatLevel.CHIP_8)
-		    registers[0xf] = 0;
-		break;
+		if (quirkVF)
+		    return c -> {
+			c.registers[x] ^= c.registers[y];
+			c.registers[0xf] = 0;
+		    };
+		return c -> c.registers[x] ^= c.registers[y];
 	    case 0x4:
-		byte tmp = registers[x];
-		registers[x] += registers[y];
-		if (Integer.compareUnsigned((int)((tmp & 0xff) + (registers[y] & 0xff)), 255) > 0)
-		    registers[0xf] = 1;
-		else
-		    registers[0xf] = 0;
-		break;
+		return c -> {
+		    byte[] r = c.registers;
+		    byte tmp = r[x];
+		    r[x] += r[y];
+		    if (Integer.compareUnsigned((int)((tmp & 0xff) + (r[y] & 0xff)), 255) > 0)
+			r[0xf] = 1;
+		    else
+			r[0xf] = 0;
+		};
 	    case 0x5:
-		tmp = registers[x];
-		registers[x] = (byte)(registers[x] - registers[y]);
-		if (Integer.compareUnsigned(tmp, registers[y]) > 0)
-		    registers[0xf] = 1;
-		else
-		    registers[0xf] = 0;
-		break;
+		return c -> {
+		    byte[] r = c.registers;
+		    byte tmp = r[x];
+		    r[x] = (byte)(r[x] - r[y]);
+		    if (Integer.compareUnsigned(tmp, r[y]) > 0)
+			r[0xf] = 1;
+		    else
+			r[0xf] = 0;
+		};
 	    case 0x6:
-	        if (compat != CompatLevel.CHIP_48 && compat != CompatLevel.SCHIP_1_0 &&
-		    compat != CompatLevel.SCHIP_1_1)
-		    registers[x] = registers[y];
-		tmp = (byte)(registers[x] & 1);
-		registers[x] = (byte)((registers[x] & 0xff) >>> 1);
-		registers[0xf] = tmp;
-		break;
+		return c -> {
+		    byte[] r = c.registers;
+		    if (quirkShift)
+			r[x] = r[y];
+		    byte tmp = (byte)(r[x] & 1);
+		    r[x] = (byte)((r[x] & 0xff) >>> 1);
+		    r[0xf] = tmp;
+		};
 	    case 0x7:
-		tmp = registers[x];
-		registers[x] = (byte)(registers[y] - registers[x]);
-		if (Integer.compareUnsigned(registers[y], tmp) > 0)
-		    registers[0xf] = 1;
-		else
-		    registers[0xf] = 0;
-		break;
+		return c -> {
+		    byte[] r = c.registers;
+		    byte tmp = r[x];
+		    r[x] = (byte)(r[y] - r[x]);
+		    if (Integer.compareUnsigned(r[y], tmp) > 0)
+			r[0xf] = 1;
+		    else
+			r[0xf] = 0;
+		};
 	    case 0xe:
-		if (compat != CompatLevel.CHIP_48 && compat != CompatLevel.SCHIP_1_0 &&
-		    compat != CompatLevel.SCHIP_1_1) 
-		    registers[x] = registers[y];
-		tmp = (byte)((registers[x] & 0x80) >>> 7);
-		registers[x] <<= 1;
-		registers[0xf] = tmp;
-		break;
+		return c -> {
+		    byte[] r = c.registers;
+		    if (quirkShift)
+			r[x] = r[y];
+		    byte tmp = (byte)((r[x] & 0x80) >>> 7);
+		    r[x] <<= 1;
+		    r[0xf] = tmp;
+		};
 	    default:
-		System.out.println(String.format("<ERROR> unimplented opcode %04x", opcode));
-		break;
+		return unimplemented(opcode);
 	    }
-	    break;
 	case 0x9:
-	    if (registers[x] != registers[y])
-		pc += 2;
-	    break;
+	    return c -> {
+		if (c.registers[x] != c.registers[y])
+		    c.skip();
+	    };
 	case 0xa:
-	    ir = nnn;
-	    break;
+	    return c -> c.ir = nnn;
 	case 0xb:
-	    if (compat == CompatLevel.CHIP_8)
-		pc = (short)(nnn + (registers[0] & 0xff)); //todo: check bounds
-	    else
-		pc = (short)(nnn + (registers[x] & 0xff));
-	    break;
+	    if (cl == CompatLevel.CHIP_8)
+		return c -> c.pc = nnn + (c.registers[0] & 0xff); //wraps at the next fetch
+	    return c -> c.pc = nnn + (c.registers[x] & 0xff);
 	case 0xc:
-	    registers[x] = (byte)((byte)(Math.random() * 256) & nn);
-	    break;
+	    return c -> c.registers[x] = (byte)(c.nextRandom() & nn);
 	case 0xd:
-	    int spx = registers[x];
-	    int spy = registers[y];
-	    boolean collided = false;
-
-	    spx %= 64;
-	    spy %= 32;
-	    
-	    for (int i = 0; i < n; i++) {
-		byte line = readMem((short)(ir + i));
-		if (spy < 32 || compat == CompatLevel.XOCHIP) {
-		    for (int j = 7; j >= 0; j--) {
-			int pix_x = spx + (7 - j);
-			int tmp = screen.getPixel(pix_x, spy);
-			if (pix_x < 64 || compat == CompatLevel.XOCHIP) {
-			    screen.setPixel(pix_x, spy, ((line >>> j) & 1) ^ tmp);
-			    if (tmp == 1 && screen.getPixel(pix_x, spy) == 0) { //pixel turned off
-				collided = true;
-			    }
-			}
-		    }
-		}
-		spy++;
-	    }
-	    registers[0xf] = (byte)(collided ? 1 : 0);
-	    break;
+	    return c -> c.drawSprite(x, y, n);
 	case 0xe:
 	    switch (nn) {
 	    case (byte)0x9e:
-		pc += keypad.getKey(registers[x]) ? 2 : 0;
-		break;
+		return c -> {
+		    if (c.keypad.getKey(c.registers[x]))
+			c.skip();
+		};
 	    case (byte)0xa1:
-		pc += keypad.getKey(registers[x]) ? 0 : 2;
-		break;
+		return c -> {
+		    if (!c.keypad.getKey(c.registers[x]))
+			c.skip();
+		};
 	    default:
-		break;
+		return unimplemented(opcode);
 	    }
-	    break;
 	case 0xf:
+	    if (opcode == 0xf000 && cl == CompatLevel.XOCHIP) {
+		return c -> { //I = the next word
+		    c.ir = ((c.memory[c.pc & c.memMask] & 0xff) << 8) | (c.memory[(c.pc + 1) & c.memMask] & 0xff);
+		    c.pc += 2;
+		};
+	    }
+	    if (opcode == 0xf002 && cl == CompatLevel.XOCHIP) {
+		return c -> { //16 bytes at I into the audio pattern
+		    c.readRange(c.ir, c.pattern, 0, 16);
+		    c.patternSet = true;
+		    c.soundChanges++;
+		};
+	    }
 	    switch (nn) {
+	    case 0x01:
+		if (cl != CompatLevel.XOCHIP)
+		    return unimplemented(opcode);
+		return c -> c.screen.selectPlanes(x);
+	    case 0x3a:
+		if (cl != CompatLevel.XOCHIP)
+		    return unimplemented(opcode);
+		return c -> {
+		    c.pitch = c.registers[x] & 0xff;
+		    c.soundChanges++;
+		};
 	    case 0x07:
-		registers[x] = delay_timer;
-		break;
+		return c -> c.registers[x] = c.delay_timer;
 	    case 0x0a:
-		pc -= 2;
-		for (int i = 0; i < 16; i++) {
-		    if(keypad.getKey(i)) {
-			registers[x] = (byte)i;
-			pc += 2;
-			break;
-		    }
-		}
-		break;
+		return c -> c.waitForKey(x);
 	    case 0x15:
-		delay_timer = registers[x];
-		break;
+		return c -> c.delay_timer = c.registers[x];
 	    case 0x18:
-		sound_timer = registers[x];
-		break;
+		return c -> c.sound_timer = c.registers[x];
 	    case 0x1e:
 		//todo: configurable old behavior
-		ir += (short)(registers[x] & 0xff);
-		if (ir > 0x0fff) {
-		    registers[0xf] = 1;
-		    ir = (short)(0 + (ir - 0x0fff));
-		}
-		break;
+		if (cl == CompatLevel.XOCHIP)
+		    return c -> c.ir = (c.ir + (c.registers[x] & 0xff)) & 0xffff;
+		return c -> {
+		    c.ir += c.registers[x] & 0xff;
+		    if (c.ir > 0x0fff) {
+			c.registers[0xf] = 1;
+			c.ir = c.ir - 0x0fff;
+		    }
+		};
 	    case 0x29:
-		ir = (short)(0x0050 + ((registers[x] & 0x0f) * 5)); //5 bytes per char
-		break;
+		return c -> c.ir = 0x0050 + ((c.registers[x] & 0x0f) * 5); //5 bytes per char
 	    case 0x33: //bcd
-		int first, second, third;
-		int tens = Integer.divideUnsigned(registers[x] & 0xff, 10);
-		int hundreds = Integer.divideUnsigned(registers[x] & 0xff, 100);
-		third = Integer.remainderUnsigned(registers[x] & 0xff, 10);
-		second = Integer.remainderUnsigned(tens, 10);
-		first = Integer.remainderUnsigned(hundreds, 10);
-		writeMem(ir, (byte)first);
-		writeMem((short)(ir + 1), (byte)second);
-		writeMem((short)(ir + 2), (byte)third);
-		break;
+		return c -> {
+		    int v = c.registers[x] & 0xff;
+		    c.writeMem(c.ir, (byte)(v / 100));
+		    c.writeMem(c.ir + 1, (byte)(v / 10 % 10));
+		    c.writeMem(c.ir + 2, (byte)(v % 10));
+		};
 	    case 0x55:
-		//todo: configurable old behavior
-		for (int i = 0; i <= x; i++) {
-		    writeMem((short)(ir + i), registers[i]);
-		}
-		if (compat == CompatLevel.CHIP_8)
-		    ir += x + 1;
-		break;
+		return c -> {
+		    c.writeRange(c.ir, c.registers, 0, x + 1);
+		    if (quirkVF)
+			c.ir = (c.ir + x + 1) & 0xffff;
+		};
 	    case 0x65:
-		//todo: configurable old behavior
-		for (int i = 0; i <= x; i++) {
-		    registers[i] = readMem((short)(ir + i));
-		}
-		if (compat == CompatLevel.CHIP_8)
-		    ir += x + 1;
-		break;
+		return c -> {
+		    c.readRange(c.ir, c.registers, 0, x + 1);
+		    if (quirkVF)
+			c.ir = (c.ir + x + 1) & 0xffff;
+		};
 	    default:
-		System.out.println("<ERROR> unimplemented opcode " + String.format("%04x", opcode));
-	    break;
+		return unimplemented(opcode);
 	    }
-	    break;
 	default:
-	    System.out.println("<ERROR> unimplemented opcode " + String.format("%04x", opcode));
-	    break;
+	    return unimplemented(opcode);
+	}
+    }
+
+    /* DXY0 is a 16x16 sprite from SCHIP on. on XO-CHIP the sprite is drawn
+       into each selected plane in turn, the data for each following the
+       last's in memory */
+    private void drawSprite(int x, int y, int n) {
+	int cols = screen.getColumns();
+	int rows = screen.getRows();
+	int spx = (registers[x] & 0xff) & (cols - 1); //both are powers of two
+	int spy = (registers[y] & 0xff) & (rows - 1);
+	boolean wrap = compat == CompatLevel.XOCHIP;
+	boolean collided = false;
+	int width = 8;
+	if (n == 0 && compat.ordinal() >= CompatLevel.SCHIP_1_0.ordinal()) {
+	    width = 16;
+	    n = 16;
+	}
+	int bytes = width / 8;
+	int addr = ir;
+
+	for (int p = 0; p < MachineScreen.PLANES; p++) {
+	    if (!screen.isSelected(p))
+		continue;
+	    int sy = spy;
+	    for (int i = 0; i < n; i++, sy++) {
+		if (sy >= rows) {
+		    if (!wrap)
+			break;
+		    sy = 0;
+		}
+		int a = addr + i * bytes;
+		int line = readMem(a) & 0xff;
+		if (width == 16)
+		    line = line << 8 | (readMem(a + 1) & 0xff);
+		collided |= screen.xorRow(p, spx, sy, line, width, wrap);
+	    }
+	    addr += n * bytes;
 	}
+	registers[0xf] = (byte)(collided ? 1 : 0);
     }
 }
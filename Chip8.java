@@ -9,22 +9,45 @@ import java.awt.*;
 import java.awt.event.*;
 
 public class Chip8 {
-    private static CPU cpu;
-    private volatile static ProgramState state;
-    private static final JFileChooser fc = new JFileChooser();
-    private volatile static int cycles = 700;
+    private final Machine machine;
+    private final JFileChooser fc = new JFileChooser();
+    private JFrame window;
+    private String romName = "chip8";
+    private int slot = 1;
+    private DebuggerFrame debugFrame = null;
 
-    public enum ProgramState {
-	RUNNING, RESET, HALT
+    public Chip8(Machine machine) {
+	this.machine = machine;
     }
-    
-    private static void createAndShowUI(MachineScreen screen, KeyPad kp) {
+
+    private void createAndShowUI() {
 	JFrame frame = new JFrame("Chip8");
-	DisplayPanel dp = new DisplayPanel(screen);
+	window = frame;
+	DisplayPanel dp = new DisplayPanel(machine.getScreen(), machine.getStats());
 	frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 	frame.setLayout(new BorderLayout());
 	frame.add(dp);
-	frame.addKeyListener(kp);
+	frame.addKeyListener(machine.getKeyPad());
+	frame.addKeyListener(new KeyAdapter() {
+		public void keyPressed(KeyEvent e) {
+		    if (e.getKeyCode() == KeyEvent.VK_BACK_SPACE)
+			machine.setRewinding(true); //steps back a frame per frame while held
+		}
+
+		public void keyReleased(KeyEvent e) {
+		    if (e.getKeyCode() == KeyEvent.VK_BACK_SPACE)
+			machine.setRewinding(false);
+		}
+	    });
+	frame.addWindowListener(new WindowAdapter() {
+		public void windowIconified(WindowEvent e) {
+		    machine.setPaused(true); //hold the machine until it's visible again
+		}
+
+		public void windowDeiconified(WindowEvent e) {
+		    machine.setPaused(false);
+		}
+	    });
 
 	JMenuBar mb = new JMenuBar();
 	JMenu fileMenu = new JMenu("File");
@@ -35,6 +58,45 @@ public class Chip8 {
 	JMenuItem loadItem = new JMenuItem("Load...", KeyEvent.VK_L);
 	loadItem.getAccessibleContext().setAccessibleDescription("Load a program file");
 	fileMenu.add(loadItem);
+	fileMenu.addSeparator();
+
+	JMenuItem recordItem = new JMenuItem("Record movie", KeyEvent.VK_R);
+	recordItem.getAccessibleContext().setAccessibleDescription("Restart the program and record its input");
+	fileMenu.add(recordItem);
+
+	JMenuItem stopItem = new JMenuItem("Stop recording...", KeyEvent.VK_S);
+	stopItem.getAccessibleContext().setAccessibleDescription("Stop recording and save the movie");
+	fileMenu.add(stopItem);
+
+	JMenuItem playItem = new JMenuItem("Play movie...", KeyEvent.VK_P);
+	playItem.getAccessibleContext().setAccessibleDescription("Play back a recorded movie");
+	fileMenu.add(playItem);
+	fileMenu.addSeparator();
+
+	JMenuItem profileItem = new JMenuItem("Start profiling", KeyEvent.VK_F);
+	profileItem.getAccessibleContext().setAccessibleDescription("Count instructions by address and subroutine");
+	fileMenu.add(profileItem);
+
+	JMenuItem stopProfileItem = new JMenuItem("Stop profiling...", KeyEvent.VK_O);
+	stopProfileItem.getAccessibleContext().setAccessibleDescription("Stop profiling and save the profile");
+	fileMenu.add(stopProfileItem);
+
+	JMenuItem traceItem = new JMenuItem("Start trace...", KeyEvent.VK_T);
+	traceItem.getAccessibleContext().setAccessibleDescription("Record every instruction executed to a file");
+	fileMenu.add(traceItem);
+
+	JMenuItem stopTraceItem = new JMenuItem("Stop trace", KeyEvent.VK_C);
+	stopTraceItem.getAccessibleContext().setAccessibleDescription("Stop recording the trace and close its file");
+	fileMenu.add(stopTraceItem);
+
+	JMenuItem exportItem = new JMenuItem("Start export...", KeyEvent.VK_E);
+	exportItem.getAccessibleContext().setAccessibleDescription("Record the screen as an animated GIF, PNGs or raw frames");
+	fileMenu.add(exportItem);
+
+	JMenuItem stopExportItem = new JMenuItem("Stop export", KeyEvent.VK_N);
+	stopExportItem.getAccessibleContext().setAccessibleDescription("Stop recording the screen and finish the file");
+	fileMenu.add(stopExportItem);
+	fileMenu.addSeparator();
 	
 	JMenuItem exitItem = new JMenuItem("Exit", KeyEvent.VK_X);
 	exitItem.getAccessibleContext().setAccessibleDescription("Exit the program");
@@ -49,6 +111,40 @@ public class Chip8 {
 	resetItem.getAccessibleContext().setAccessibleDescription("Reset the machine");
 	machineMenu.add(resetItem);
 
+	JCheckBoxMenuItem turboItem = new JCheckBoxMenuItem("Turbo");
+	turboItem.setMnemonic(KeyEvent.VK_T);
+	turboItem.getAccessibleContext().setAccessibleDescription("Run as fast as possible");
+	machineMenu.add(turboItem);
+
+	machineMenu.addSeparator();
+
+	JMenuItem saveItem = new JMenuItem("Save state", KeyEvent.VK_S);
+	saveItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F5, 0));
+	saveItem.getAccessibleContext().setAccessibleDescription("Save the machine state to the current slot");
+	machineMenu.add(saveItem);
+
+	JMenuItem restoreItem = new JMenuItem("Load state", KeyEvent.VK_O);
+	restoreItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F9, 0));
+	restoreItem.getAccessibleContext().setAccessibleDescription("Load the machine state from the current slot");
+	machineMenu.add(restoreItem);
+
+	JMenu slotMenu = new JMenu("State slot");
+	slotMenu.setMnemonic(KeyEvent.VK_L);
+	ButtonGroup slots = new ButtonGroup();
+	for (int i = 1; i <= 4; i++) {
+	    JRadioButtonMenuItem slotItem = new JRadioButtonMenuItem("Slot " + i, i == slot);
+	    slotItem.setActionCommand("slot");
+	    slotItem.addActionListener(e -> slot = Integer.parseInt(((JMenuItem)e.getSource()).getText().substring(5)));
+	    slots.add(slotItem);
+	    slotMenu.add(slotItem);
+	}
+	machineMenu.add(slotMenu);
+	machineMenu.addSeparator();
+
+	JMenuItem debugItem = new JMenuItem("Debugger...", KeyEvent.VK_D);
+	debugItem.getAccessibleContext().setAccessibleDescription("Breakpoints, watches and stepping");
+	machineMenu.add(debugItem);
+
 	JMenuItem prefItem = new JMenuItem("Preferences...", KeyEvent.VK_P);
 	prefItem.getAccessibleContext().setAccessibleDescription("Machine preferences");
 	machineMenu.add(prefItem);
@@ -56,7 +152,20 @@ public class Chip8 {
 	GuiListener listen = new GuiListener();
 	loadItem.addActionListener(listen);
 	exitItem.addActionListener(listen);
+	recordItem.addActionListener(listen);
+	stopItem.addActionListener(listen);
+	playItem.addActionListener(listen);
+	profileItem.addActionListener(listen);
+	stopProfileItem.addActionListener(listen);
+	traceItem.addActionListener(listen);
+	stopTraceItem.addActionListener(listen);
+	exportItem.addActionListener(listen);
+	stopExportItem.addActionListener(listen);
 	resetItem.addActionListener(listen);
+	turboItem.addActionListener(listen);
+	saveItem.addActionListener(listen);
+	restoreItem.addActionListener(listen);
+	debugItem.addActionListener(listen);
 	prefItem.addActionListener(listen);
 
 	fileMenu.addMenuListener(listen);
@@ -67,101 +176,308 @@ public class Chip8 {
 	frame.setLocationRelativeTo(null);
 	frame.setVisible(true);
 	dp.startDisplay();
+
+	Timer rate = new Timer(1000, new ActionListener() {
+		public void actionPerformed(ActionEvent e) {
+		    showStatus();
+		}
+	    });
+	rate.start();
+    }
+
+    private void showStatus() {
+	String title = "Chip8";
+	if (machine.getState() == Machine.State.FAULTED)
+	    title += " (halted: " + machine.getFault().getMessage() + ")";
+	else if (machine.isTurbo())
+	    title += String.format(" (turbo, %.2f M instr/s)", machine.getInstructionsPerSecond() / 1e6);
+	window.setTitle(title);
     }
     
-    public static void loadBin(String path, short start) {
-	Path p = Paths.get(path);
-	byte[] data = null;
+    private Path slotPath() {
+	return Paths.get(romName + "." + slot + ".c8s");
+    }
+
+    private void saveState() {
+	Path p = slotPath();
+	machine.submit(() -> {
+		try {
+		    machine.saveState(p);
+		} catch (java.io.IOException e) {
+		    System.out.println("<ERROR> failed saving state to " + p);
+		    System.out.println(e);
+		}
+	    });
+    }
+
+    private void restoreState() {
+	Path p = slotPath();
+	machine.submit(() -> {
+		try {
+		    machine.loadState(p);
+		} catch (java.io.IOException | RuntimeException e) {
+		    System.out.println("<ERROR> failed loading state from " + p);
+		    System.out.println(e);
+		}
+	    });
+    }
+
+    private void recordMovie() {
+	machine.submit(() -> {
+		try {
+		    machine.startRecording();
+		} catch (IllegalStateException e) {
+		    System.out.println("<ERROR> can't record: " + e.getMessage());
+		}
+	    });
+    }
+
+    private void stopMovie() {
+	fc.setSelectedFile(new java.io.File(romName + ".c8m"));
+	if (fc.showSaveDialog(window) != JFileChooser.APPROVE_OPTION)
+	    return;
+	Path p = fc.getSelectedFile().toPath();
+	machine.submit(() -> {
+		Movie mv = machine.stopRecording();
+		if (mv == null) {
+		    System.out.println("<ERROR> no movie is being recorded");
+		    return;
+		}
+		try {
+		    mv.write(p);
+		} catch (java.io.IOException e) {
+		    System.out.println("<ERROR> failed saving movie to " + p);
+		    System.out.println(e);
+		}
+	    });
+    }
+
+    private void playMovie() {
+	if (fc.showOpenDialog(window) != JFileChooser.APPROVE_OPTION)
+	    return;
+	Path p = fc.getSelectedFile().toPath();
 	try {
-	    data = Files.readAllBytes(p);
-	} catch (java.io.IOException e) {
-	    System.out.println("<ERROR> IOException in loadBin");
-	    System.out.println(e);
-	    System.exit(-1);
+	    Movie mv = Movie.read(p);
+	    machine.submit(() -> machine.play(mv));
+	} catch (java.io.IOException | RuntimeException e) {
+	    JOptionPane.showMessageDialog(window, "Couldn't load " + p + ":\n" + e.getMessage(),
+					  "Load failed", JOptionPane.ERROR_MESSAGE);
 	}
+    }
 
-	int len = data.length;
-	if (len > 4096 - start) { //todo: show error dialogue instead or something
-	    System.out.println("<ERROR> data too large for emulated memory");
-	    System.exit(-1);
+    /* saves the collapsed stacks where asked, and the heatmap beside them */
+    private void stopProfiling() {
+	fc.setSelectedFile(new java.io.File(romName + ".folded"));
+	if (fc.showSaveDialog(window) != JFileChooser.APPROVE_OPTION)
+	    return;
+	Path p = fc.getSelectedFile().toPath();
+	Path heat = p.resolveSibling(p.getFileName() + ".csv");
+	machine.submit(() -> {
+		Profiler prof = machine.stopProfiling();
+		if (prof == null) {
+		    System.out.println("<ERROR> profiling isn't on");
+		    return;
+		}
+		try {
+		    prof.writeCollapsed(p);
+		    prof.writeHeatmap(heat);
+		} catch (java.io.IOException e) {
+		    System.out.println("<ERROR> failed saving profile to " + p);
+		    System.out.println(e);
+		}
+	    });
+    }
+
+    private void startTrace() {
+	fc.setSelectedFile(new java.io.File(romName + ".c8t"));
+	if (fc.showSaveDialog(window) != JFileChooser.APPROVE_OPTION)
+	    return;
+	Path p = fc.getSelectedFile().toPath();
+	machine.submit(() -> {
+		try {
+		    machine.startTrace(p);
+		} catch (java.io.IOException e) {
+		    System.out.println("<ERROR> failed starting trace in " + p);
+		    System.out.println(e);
+		}
+	    });
+    }
+
+    private void stopTrace() {
+	machine.submit(() -> {
+		try {
+		    if (machine.stopTrace() < 0)
+			System.out.println("<ERROR> no trace is being recorded");
+		} catch (java.io.IOException e) {
+		    System.out.println("<ERROR> failed writing trace");
+		    System.out.println(e);
+		}
+	    });
+    }
+
+    /* the chosen file's extension picks the format: .gif, .png or .c8f */
+    private void startExport() {
+	fc.setSelectedFile(new java.io.File(romName + ".gif"));
+	if (fc.showSaveDialog(window) != JFileChooser.APPROVE_OPTION)
+	    return;
+	Path p = fc.getSelectedFile().toPath();
+	FrameRecorder r;
+	try {
+	    r = new FrameRecorder(FrameEncoder.open(p, machine.getScreen().getWidth() / MachineScreen.MAX_COLUMNS), true);
+	} catch (java.io.IOException | IllegalArgumentException e) {
+	    JOptionPane.showMessageDialog(window, "Couldn't export to " + p + ":\n" + e.getMessage(),
+					  "Export failed", JOptionPane.ERROR_MESSAGE);
+	    return;
 	}
+	machine.submit(() -> {
+		try {
+		    machine.startExport(r);
+		} catch (java.io.IOException e) {
+		    System.out.println("<ERROR> failed finishing the previous export");
+		    System.out.println(e);
+		}
+	    });
+    }
 
-	for (int i = 0; i < len; i++)
-	    cpu.writeMem((short)(start + i), data[i]);
+    private void stopExport() {
+	machine.submit(() -> {
+		try {
+		    FrameRecorder r = machine.stopExport();
+		    if (r == null)
+			System.out.println("<ERROR> no export is running");
+		    else if (r.getDropped() > 0)
+			System.out.println("<ERROR> export dropped " + r.getDropped() + " frames");
+		} catch (java.io.IOException e) {
+		    System.out.println("<ERROR> failed writing export");
+		    System.out.println(e);
+		}
+	    });
     }
-    
-    public static void main(String[] args) {
-	cpu = new CPU();
-	MachineScreen screen = new MachineScreen(64, 32, 4); //todo: user settable scale
-	KeyPad kp = new KeyPad();
-	cpu.setKeyPad(kp);
-	cpu.setScreen(screen);
-	cpu.setCompatLevel(CPU.CompatLevel.CHIP_48);
 
+    private void loadRom(String path) {
 	try {
-	    loadBin(args[0], (short)0x200); //todo: check it's a valid path
-	} catch (ArrayIndexOutOfBoundsException e) {
-	    //can load from gui if no command line arguments present
+	    machine.loadRom(Paths.get(path));
+	    romName = Paths.get(path).getFileName().toString();
+	} catch (java.io.IOException | IllegalArgumentException e) {
+	    JOptionPane.showMessageDialog(window, "Couldn't load " + path + ":\n" + e.getMessage(),
+					  "Load failed", JOptionPane.ERROR_MESSAGE);
 	}
+    }
+
+    public static void main(String[] args) {
+	Machine machine = new Machine(4); //todo: user settable scale
 
+	machine.enableRewind(16 * 1024 * 1024, 60 * 60 * 10, 60); //up to ten minutes
+	try {
+	    machine.getStats().register("main"); //for jconsole and friends
+	} catch (javax.management.JMException e) {
+	    System.out.println("<ERROR> couldn't register machine stats: " + e.getMessage());
+	}
 	try {
-	    loadBin("font.bin", (short)0x50); //todo: configurable font
-	} catch (Exception e) {
-	    System.out.println("<ERROR> failed loading font");
-	    System.out.println(e);
-	    System.exit(-1);
+	    machine.setSound(new AudioOutput());
+	} catch (javax.sound.sampled.LineUnavailableException | IllegalArgumentException e) {
+	    System.out.println("<ERROR> no sound: " + e.getMessage()); //carry on silently
+	}
+	Chip8 gui = new Chip8(machine);
+	if (args.length > 0) {
+	    try {
+		machine.loadRom(Paths.get(args[0]));
+		gui.romName = Paths.get(args[0]).getFileName().toString();
+	    } catch (java.io.IOException | IllegalArgumentException e) {
+		System.out.println("<ERROR> failed loading " + args[0]);
+		System.out.println(e);
+		System.exit(-1);
+	    }
+	} //otherwise can load from gui
+
+	Path font = Paths.get("font.bin"); //todo: configurable font
+	if (Files.exists(font)) {
+	    try {
+		machine.loadFont(Files.readAllBytes(font));
+	    } catch (Exception e) {
+		System.out.println("<ERROR> failed loading font");
+		System.out.println(e);
+		System.exit(-1);
+	    }
+	}
+
+	Path keys = Paths.get("keys.txt"); //see KeyPad.readMapping
+	if (Files.exists(keys)) {
+	    try {
+		machine.getKeyPad().setMapping("keys.txt", KeyPad.readMapping(keys));
+	    } catch (java.io.IOException e) {
+		System.out.println("<ERROR> failed loading key mapping, using qwerty");
+		System.out.println(e.getMessage());
+	    }
 	}
 
 	EventQueue.invokeLater(new Runnable()
 	    {
 		public void run() {
-		    createAndShowUI(screen, kp);
+		    gui.createAndShowUI();
 		}
 	    });
 
-	Timer t = new Timer(1000/60, cpu);
-	t.start();
-
-	state = ProgramState.RUNNING;
-
-	long start = System.nanoTime();
-	for (long i = 0; ; i++) {
-	    switch (state) {
-	    case RUNNING:
-		cpu.step();
-		break;
-	    case HALT:
-		break;
-	    case RESET:
-		cpu.reset();
-		state = ProgramState.RUNNING;
-		break;
-	    default:
-		System.out.println("Unimplemented program state");
-		System.exit(-1);
-		break;
-	    }
-	    long end = start + i * 1000000000L / cycles;
-	    while (System.nanoTime() < end)
-		;
-	}
+	machine.run();
     }
 
-    public static class GuiListener implements ActionListener, MenuListener {
+    public class GuiListener implements ActionListener, MenuListener {
 	public void actionPerformed(ActionEvent e) {
 	    switch (e.getActionCommand()) {
 	    case "Load...":
 		int ret = fc.showOpenDialog(null);
-		if (ret == JFileChooser.APPROVE_OPTION) {
-		    loadBin(fc.getSelectedFile().getAbsolutePath(), (short)0x200);
-		    state = ProgramState.RESET;
-		}
+		if (ret == JFileChooser.APPROVE_OPTION)
+		    loadRom(fc.getSelectedFile().getAbsolutePath());
+		break;
+	    case "Record movie":
+		recordMovie();
+		break;
+	    case "Stop recording...":
+		stopMovie();
+		break;
+	    case "Play movie...":
+		playMovie();
+		break;
+	    case "Start profiling":
+		machine.submit(machine::startProfiling);
+		break;
+	    case "Stop profiling...":
+		stopProfiling();
+		break;
+	    case "Start trace...":
+		startTrace();
+		break;
+	    case "Stop trace":
+		stopTrace();
+		break;
+	    case "Start export...":
+		startExport();
+		break;
+	    case "Stop export":
+		stopExport();
 		break;
 	    case "Exit":
 		System.exit(0);
 		break;
 	    case "Reset":
-		state = ProgramState.RESET;
+		machine.reset();
+		break;
+	    case "Save state":
+		saveState();
+		break;
+	    case "Load state":
+		restoreState();
+		break;
+	    case "slot":
+		break;
+	    case "Turbo":
+		machine.setTurbo(((JCheckBoxMenuItem)e.getSource()).isSelected());
+		break;
+	    case "Debugger...":
+		if (debugFrame == null)
+		    debugFrame = new DebuggerFrame();
+		debugFrame.setVisible(true);
+		debugFrame.toFront();
 		break;
 	    case "Preferences...":
 		EventQueue.invokeLater(new Runnable() {
@@ -177,28 +493,31 @@ public class Chip8 {
 	}
 
 	public void menuSelected(MenuEvent e) {
-	    state = ProgramState.HALT;
+	    machine.halt();
 	}
 
 	public void menuDeselected(MenuEvent e) {
-	    state = ProgramState.RUNNING;
+	    machine.resume();
 	}
 
 	public void menuCanceled(MenuEvent e) {
-	    state = ProgramState.RUNNING;
+	    machine.resume();
 	}
     }
 
-    public static class OptionsFrame extends JFrame implements ActionListener {
+    public class OptionsFrame extends JFrame implements ActionListener {
 	/* needs:
 	   compatlevel
 	   scale (might need screen refactor)
 	   cycles per second
-	   sound toggle/volume
 	   ok/apply/cancel
 	*/
 	private JComboBox<String> compatList;
 	private JFormattedTextField cyclesField;
+	private JComboBox<String> boundsList;
+	private JCheckBox soundBox;
+	private JSlider volumeSlider;
+	private JComboBox<String> keysList;
 
 	public OptionsFrame() {
 	    super("Machine Preferences");
@@ -209,7 +528,7 @@ public class Chip8 {
 	    JLabel compatLabel = new JLabel("Compatibility level:");
 	    String[] compatStrings = { "CHIP-8", "CHIP-48", "Super-CHIP 1.0", "Super-CHIP 1.1", "XOCHIP" };
 	    compatList = new JComboBox<>(compatStrings);
-	    compatList.setSelectedIndex(cpu.getCompatLevel().ordinal());
+	    compatList.setSelectedIndex(machine.getCompatLevel().ordinal());
 	    compatList.addActionListener(this);
 
 	    JLabel cyclesLabel = new JLabel("Cycles per second:");
@@ -220,7 +539,26 @@ public class Chip8 {
 	    fmtr.setMaximum(Integer.MAX_VALUE);
 	    fmtr.setAllowsInvalid(false);
 	    cyclesField = new JFormattedTextField(fmtr);
-	    cyclesField.setValue(cycles);
+	    cyclesField.setValue(machine.getCycles());
+
+	    JLabel boundsLabel = new JLabel("Out of bounds memory:");
+	    String[] boundsStrings = { "Wrap around", "Halt", "Fault" }; //in OutOfBounds order
+	    boundsList = new JComboBox<>(boundsStrings);
+	    boundsList.setSelectedIndex(machine.getOutOfBounds().ordinal());
+
+	    AudioOutput audio = machine.getSound() instanceof AudioOutput ? (AudioOutput)machine.getSound() : null;
+	    soundBox = new JCheckBox("Sound", audio != null && audio.isEnabled());
+	    soundBox.setMnemonic(KeyEvent.VK_S);
+	    soundBox.setEnabled(audio != null);
+	    volumeSlider = new JSlider(0, 100, audio == null ? 50 : Math.round(audio.getVolume() * 100));
+	    volumeSlider.setEnabled(audio != null);
+
+	    JLabel keysLabel = new JLabel("Key layout:");
+	    keysList = new JComboBox<>(KeyPad.LAYOUTS);
+	    String mapping = machine.getKeyPad().getMappingName();
+	    if (!java.util.Arrays.asList(KeyPad.LAYOUTS).contains(mapping))
+		keysList.addItem(mapping); //loaded from a file
+	    keysList.setSelectedItem(mapping);
 
 	    JButton okbtn = new JButton("Ok");
 	    okbtn.setMnemonic(KeyEvent.VK_O);
@@ -256,9 +594,48 @@ public class Chip8 {
 	    con.fill = GridBagConstraints.HORIZONTAL;
 	    con.anchor = GridBagConstraints.LINE_END;
 	    add(cyclesField, con);
+
+	    con.gridx = 0;
+	    con.gridy = 2;
+	    con.gridwidth = 1;
+	    con.fill = GridBagConstraints.NONE;
+	    con.anchor = GridBagConstraints.LINE_START;
+	    add(boundsLabel, con);
+
+	    con.gridx = 4;
+	    con.gridwidth = 2;
+	    con.fill = GridBagConstraints.HORIZONTAL;
+	    con.anchor = GridBagConstraints.LINE_END;
+	    add(boundsList, con);
+
+	    con.gridx = 0;
+	    con.gridy = 3;
+	    con.gridwidth = 1;
+	    con.fill = GridBagConstraints.NONE;
+	    con.anchor = GridBagConstraints.LINE_START;
+	    add(soundBox, con);
+
+	    con.gridx = 4;
+	    con.gridwidth = 2;
+	    con.fill = GridBagConstraints.HORIZONTAL;
+	    con.anchor = GridBagConstraints.LINE_END;
+	    add(volumeSlider, con);
+
+	    con.gridx = 0;
+	    con.gridy = 4;
+	    con.gridwidth = 1;
+	    con.fill = GridBagConstraints.NONE;
+	    con.anchor = GridBagConstraints.LINE_START;
+	    add(keysLabel, con);
+
+	    con.gridx = 4;
+	    con.gridwidth = 2;
+	    con.fill = GridBagConstraints.HORIZONTAL;
+	    con.anchor = GridBagConstraints.LINE_END;
+	    add(keysList, con);
 	    
 	    con.gridx = 1;
-	    con.gridy = 2;
+	    con.gridy = 5;
 	    con.gridwidth = 1;
 	    con.fill = GridBagConstraints.NONE;
 	    con.anchor = GridBagConstraints.CENTER;
@@ -274,22 +651,31 @@ public class Chip8 {
 	public void actionPerformed(ActionEvent e) {
 	    switch (e.getActionCommand()) {
 	    case "ok":
-		cycles = (int)cyclesField.getValue();
+		machine.setCycles((int)cyclesField.getValue());
+		machine.setOutOfBounds(CPU.OutOfBounds.values()[boundsList.getSelectedIndex()]);
+		if (machine.getSound() instanceof AudioOutput) {
+		    AudioOutput audio = (AudioOutput)machine.getSound();
+		    audio.setEnabled(soundBox.isSelected());
+		    audio.setVolume(volumeSlider.getValue() / 100f);
+		}
+		String layout = (String)keysList.getSelectedItem();
+		if (!layout.equals(machine.getKeyPad().getMappingName()))
+		    machine.getKeyPad().setMapping(layout, KeyPad.layout(layout)); //only built in ones are new
 		switch ((String)compatList.getSelectedItem()) {
 		case "CHIP-8":
-		    cpu.setCompatLevel(CPU.CompatLevel.CHIP_8);
+		    machine.setCompatLevel(CPU.CompatLevel.CHIP_8);
 		    break;
 		case "CHIP-48":
-		    cpu.setCompatLevel(CPU.CompatLevel.CHIP_48);
+		    machine.setCompatLevel(CPU.CompatLevel.CHIP_48);
 		    break;
 		case "Super-CHIP 1.0":
-		    cpu.setCompatLevel(CPU.CompatLevel.SCHIP_1_0);
+		    machine.setCompatLevel(CPU.CompatLevel.SCHIP_1_0);
 		    break;
 		case "Super-CHIP 1.1":
-		    cpu.setCompatLevel(CPU.CompatLevel.SCHIP_1_1);
+		    machine.setCompatLevel(CPU.CompatLevel.SCHIP_1_1);
 		    break;
 		case "XOCHIP":
-		    cpu.setCompatLevel(CPU.CompatLevel.XOCHIP);
+		    machine.setCompatLevel(CPU.CompatLevel.XOCHIP);
 		    break;
 		}
 		dispose();
@@ -302,4 +688,66 @@ public class Chip8 {
 	    }
 	}
     }
+
+    /* the debugger's text interface in a window: commands typed in run on
+       the machine's thread, and stops are reported as they happen */
+    public class DebuggerFrame extends JFrame implements ActionListener {
+	private static final long serialVersionUID = 1L;
+
+	private final Debugger debugger = machine.getDebugger();
+	private JTextArea output;
+	private JTextField input;
+
+	public DebuggerFrame() {
+	    super("Debugger");
+	    setDefaultCloseOperation(HIDE_ON_CLOSE);
+	    setLayout(new BorderLayout());
+
+	    output = new JTextArea(24, 80);
+	    output.setEditable(false);
+	    output.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+	    add(new JScrollPane(output), BorderLayout.CENTER);
+
+	    JPanel bottom = new JPanel(new BorderLayout());
+	    input = new JTextField();
+	    input.setFont(output.getFont());
+	    input.addActionListener(this);
+	    bottom.add(input, BorderLayout.CENTER);
+
+	    JPanel buttons = new JPanel();
+	    String[][] actions = { { "Pause", "p" }, { "Continue", "c" }, { "Step", "s" },
+				   { "Step over", "n" }, { "Step out", "o" }, { "Registers", "r" } };
+	    for (String[] a : actions) {
+		JButton b = new JButton(a[0]);
+		b.setActionCommand(a[1]);
+		b.addActionListener(this);
+		buttons.add(b);
+	    }
+	    bottom.add(buttons, BorderLayout.SOUTH);
+	    add(bottom, BorderLayout.SOUTH);
+
+	    //the debugger calls its listener on the machine's thread, so it is set there too
+	    machine.submit(() -> debugger.setListener((d, report) -> SwingUtilities.invokeLater(() -> append(report))));
+	    append(Debugger.HELP);
+	    pack();
+	}
+
+	private void append(String text) {
+	    output.append(text + "\n");
+	    output.setCaretPosition(output.getDocument().getLength());
+	}
+
+	public void actionPerformed(ActionEvent e) {
+	    String cmd = e.getSource() == input ? input.getText() : e.getActionCommand();
+	    input.setText("");
+	    if (cmd.trim().isEmpty())
+		return;
+	    append("> " + cmd);
+	    machine.submit(() -> {
+		    String out = debugger.command(cmd);
+		    if (!out.equals("running"))
+			SwingUtilities.invokeLater(() -> append(out));
+		});
+	}
+    }
 }
@@ -0,0 +1,327 @@
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+
+/* runs test ROMs headless and checks each final screen against a golden
+   image, for catching regressions in the test suites without looking.
+   usage:
+   java Conformance [-j workers] [-u] [-d diff dir] <manifest>
+   the manifest has a case per line, blank lines and # comments aside:
+     name rom compat instructions [key@frame[-frame],...]
+   rom is relative to the manifest, compat a CPU.CompatLevel and keys hex,
+   held from the first frame given to the last. each case runs for its
+   instruction count and its screen is compared with golden/<name>.png
+   beside the manifest; a case that differs leaves <name>.diff.png in the
+   diff dir, red where it lit a pixel the golden hasn't and green where
+   it missed one. -u writes the goldens from this run instead */
+public class Conformance {
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private boolean update = false;
+    private Path diffs = Paths.get("");
+
+    private static final class Key {
+	final int key;
+	final long from;
+	final long to;
+
+	Key(int key, long from, long to) {
+	    this.key = key;
+	    this.from = from;
+	    this.to = to;
+	}
+    }
+
+    public static final class Case {
+	//hex key @ first frame [- last frame]
+	private static final Pattern KEY = Pattern.compile("([0-9a-fA-F])@(\\d+)(?:-(\\d+))?");
+
+	public final String name;
+	final Path rom;
+	final Path golden;
+	final CPU.CompatLevel compat;
+	final long instructions;
+	final List<Key> keys = new ArrayList<>();
+
+	Case(Path dir, String line) {
+	    String[] f = line.trim().split("\\s+");
+	    if (f.length < 4 || f.length > 5)
+		throw new IllegalArgumentException("expected name rom compat instructions [keys]: " + line);
+	    name = f[0];
+	    rom = dir.resolve(f[1]);
+	    golden = dir.resolve("golden").resolve(name + ".png");
+	    try {
+		compat = CPU.CompatLevel.valueOf(f[2]);
+		instructions = Long.parseLong(f[3]);
+		if (f.length == 5) {
+		    for (String k : f[4].split(",")) {
+			Matcher m = KEY.matcher(k);
+			if (!m.matches())
+			    throw new IllegalArgumentException("expected key@from[-to] with a hex key 0-f, not " + k);
+			long from = Long.parseLong(m.group(2));
+			long to = m.group(3) != null ? Long.parseLong(m.group(3)) : from;
+			if (to < from)
+			    throw new IllegalArgumentException("key " + k + " ends before it starts");
+			keys.add(new Key(Integer.parseInt(m.group(1), 16), from, to));
+		    }
+		}
+	    } catch (IllegalArgumentException e) {
+		throw new IllegalArgumentException(e.getMessage() + ": " + line, e);
+	    }
+	}
+
+	/* true if the keys change in this frame or a later one */
+	boolean changesFrom(long frame) {
+	    for (Key k : keys)
+		if (k.from >= frame || k.to + 1 >= frame)
+		    return true;
+	    return false;
+	}
+
+	/* the keys held during a frame, as a mask */
+	int keysAt(long frame) {
+	    int mask = 0;
+	    for (Key k : keys)
+		if (frame >= k.from && frame <= k.to)
+		    mask |= 1 << k.key;
+	    return mask;
+	}
+    }
+
+    public static final class Result {
+	public final Case c;
+	public boolean passed = false;
+	public String message;
+
+	Result(Case c) {
+	    this.c = c;
+	}
+
+	public String toString() {
+	    return (passed ? "pass " : "FAIL ") + c.name + (message == null ? "" : ": " + message);
+	}
+    }
+
+    public static List<Case> readManifest(Path p) throws IOException {
+	Path dir = p.toAbsolutePath().getParent();
+	List<Case> cases = new ArrayList<>();
+	for (String line : Files.readAllLines(p)) {
+	    int hash = line.indexOf('#');
+	    if (hash >= 0)
+		line = line.substring(0, hash);
+	    if (!line.trim().isEmpty())
+		cases.add(new Case(dir, line));
+	}
+	return cases;
+    }
+
+    /* the screen at one pixel per high resolution pixel */
+    private static BufferedImage image(MachineScreen s) {
+	long[] frame = new long[MachineScreen.WORDS + 1];
+	s.copyWords(frame);
+	frame[MachineScreen.WORDS] = s.getFlags();
+	return FrameEncoder.image(frame, 1);
+    }
+
+    //whatever format the golden was saved in, back to palette indices
+    private static byte[] pixels(BufferedImage img) {
+	if (img.getWidth() != MachineScreen.MAX_COLUMNS || img.getHeight() != MachineScreen.MAX_ROWS)
+	    throw new IllegalArgumentException("golden is " + img.getWidth() + "x" + img.getHeight());
+	byte[] px = new byte[MachineScreen.MAX_COLUMNS * MachineScreen.MAX_ROWS];
+	for (int y = 0; y < MachineScreen.MAX_ROWS; y++) {
+	    for (int x = 0; x < MachineScreen.MAX_COLUMNS; x++) {
+		int rgb = img.getRGB(x, y) & 0xffffff;
+		int c = 0;
+		while (c < MachineScreen.PALETTE.length && MachineScreen.PALETTE[c] != rgb)
+		    c++;
+		px[y * MachineScreen.MAX_COLUMNS + x] = (byte)c; //an unknown colour matches nothing
+	    }
+	}
+	return px;
+    }
+
+    //64 bit FNV-1a, as MachineScreen.hash()
+    private static long hash(byte[] px) {
+	long h = 0xcbf29ce484222325L;
+	for (byte b : px) {
+	    h ^= b & 0xff;
+	    h *= 0x100000001b3L;
+	}
+	return h;
+    }
+
+    public Result run(Case c) {
+	Result res = new Result(c);
+	try {
+	    Machine m = new Machine(1);
+	    m.setCompatLevel(c.compat);
+	    m.setSeed(0);
+	    m.loadRom(c.rom);
+	    KeyPad keypad = m.getKeyPad();
+	    CPU cpu = m.getCPU();
+	    int held = 0;
+	    while ((m.getState() == Machine.State.RUNNING || m.getState() == Machine.State.RESET)
+		   && cpu.getInstructionCount() < c.instructions) {
+		int want = c.keysAt(m.getFrames());
+		for (int k = 0; k < 16; k++) {
+		    if (((want ^ held) & (1 << k)) == 0)
+			continue;
+		    if ((want & (1 << k)) != 0)
+			keypad.press(k);
+		    else
+			keypad.release(k);
+		}
+		held = want;
+		m.runFrame(c.instructions - cpu.getInstructionCount());
+		if (cpu.isWaitingForKey() && !c.changesFrom(m.getFrames()))
+		    break; //nothing runs until a key that will never come
+	    }
+	    if (m.getFault() != null) {
+		res.message = m.getFault().getMessage();
+		return res;
+	    }
+	    if (cpu.getUnimplemented().length > 0) {
+		res.message = String.format("unimplemented opcode %04x", cpu.getUnimplemented()[0]);
+		return res;
+	    }
+
+	    BufferedImage screen = image(m.getScreen());
+	    if (update) {
+		Files.createDirectories(c.golden.getParent());
+		ImageIO.write(screen, "png", c.golden.toFile());
+		res.passed = true;
+		res.message = "golden written";
+		return res;
+	    }
+	    if (!Files.exists(c.golden)) {
+		res.message = "no golden " + c.golden + ", make one with -u";
+		return res;
+	    }
+	    byte[] actual = pixels(screen);
+	    byte[] expected = pixels(ImageIO.read(c.golden.toFile()));
+	    if (hash(actual) == hash(expected)) {
+		res.passed = true;
+		return res;
+	    }
+	    Path diff = diffs.resolve(c.name + ".diff.png");
+	    res.message = differences(actual, expected) + " pixels differ, see " + diff;
+	    writeDiff(actual, expected, diff);
+	} catch (IOException | RuntimeException e) {
+	    res.message = e.toString();
+	}
+	return res;
+    }
+
+    private static int differences(byte[] a, byte[] b) {
+	int n = 0;
+	for (int i = 0; i < a.length; i++)
+	    if (a[i] != b[i])
+		n++;
+	return n;
+    }
+
+    /* matching pixels dimmed, mismatches red where this run lit one and
+       green where it should have, at four times the size */
+    private static void writeDiff(byte[] actual, byte[] expected, Path p) throws IOException {
+	int scale = 4;
+	int w = MachineScreen.MAX_COLUMNS;
+	BufferedImage img = new BufferedImage(w * scale, MachineScreen.MAX_ROWS * scale, BufferedImage.TYPE_INT_RGB);
+	for (int i = 0; i < actual.length; i++) {
+	    int rgb;
+	    if (actual[i] == expected[i])
+		rgb = (MachineScreen.PALETTE[actual[i]] >>> 2) & 0x3f3f3f;
+	    else
+		rgb = actual[i] != 0 ? 0xff0000 : 0x00ff00;
+	    int x = i % w * scale;
+	    int y = i / w * scale;
+	    for (int dy = 0; dy < scale; dy++)
+		for (int dx = 0; dx < scale; dx++)
+		    img.setRGB(x + dx, y + dy, rgb);
+	}
+	if (p.toAbsolutePath().getParent() != null)
+	    Files.createDirectories(p.toAbsolutePath().getParent());
+	ImageIO.write(img, "png", p.toFile());
+    }
+
+    public List<Result> runAll(List<Case> cases) throws InterruptedException {
+	ExecutorService pool = Executors.newFixedThreadPool(workers);
+	List<Future<Result>> pending = new ArrayList<>();
+	for (Case c : cases)
+	    pending.add(pool.submit(() -> run(c)));
+	List<Result> results = new ArrayList<>();
+	try {
+	    for (Future<Result> f : pending)
+		results.add(f.get());
+	} catch (ExecutionException e) {
+	    throw new IllegalStateException(e.getCause());
+	} finally {
+	    pool.shutdown();
+	}
+	return results;
+    }
+
+    private static void usage() {
+	System.out.println("usage: java Conformance [-j workers] [-u] [-d diff dir] <manifest>");
+	System.exit(-1);
+    }
+
+    public static void main(String[] args) throws Exception {
+	System.setProperty("java.awt.headless", "true");
+	Conformance cf = new Conformance();
+	String manifest = null;
+	try {
+	    for (int i = 0; i < args.length; i++) {
+		switch (args[i]) {
+		case "-j":
+		    cf.workers = Integer.parseInt(args[++i]);
+		    break;
+		case "-u":
+		    cf.update = true;
+		    break;
+		case "-d":
+		    cf.diffs = Paths.get(args[++i]);
+		    break;
+		default:
+		    if (manifest != null)
+			usage();
+		    manifest = args[i];
+		    break;
+		}
+	    }
+	} catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+	    usage();
+	}
+	if (manifest == null || cf.workers < 1)
+	    usage();
+
+	long start = System.nanoTime();
+	List<Case> cases;
+	try {
+	    cases = readManifest(Paths.get(manifest));
+	} catch (IOException | IllegalArgumentException e) {
+	    System.out.println("<ERROR> bad manifest " + manifest + ": " + e.getMessage());
+	    System.exit(1);
+	    return;
+	}
+	List<Result> results = cf.runAll(cases);
+	int failed = 0;
+	for (Result r : results) {
+	    System.out.println(r);
+	    if (!r.passed)
+		failed++;
+	}
+	System.err.println(String.format("%d passed, %d failed in %.1f ms", results.size() - failed, failed,
+					 (System.nanoTime() - start) / 1e6));
+	System.exit(failed == 0 ? 0 : 1);
+    }
+}
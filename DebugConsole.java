@@ -0,0 +1,75 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+
+/* the debugger on standard input and output, headless. the program stops
+   before its first instruction; continuing runs it unpaced until the next
+   stop. usage:
+   java DebugConsole [-c compat] [-r cycles] [-s seed] <rom> */
+public class DebugConsole {
+    private static void usage() {
+	System.out.println("usage: java DebugConsole [-c compat] [-r cycles] [-s seed] <rom>");
+	System.exit(-1);
+    }
+
+    /* runs frames on this thread until the machine stops running */
+    private static void runUntilStopped(Machine m) {
+	while (m.getState() == Machine.State.RUNNING)
+	    m.runFrame();
+	if (m.getFault() != null)
+	    System.out.println("<ERROR> " + m.getFault().getMessage());
+    }
+
+    public static void main(String[] args) throws Exception {
+	System.setProperty("java.awt.headless", "true");
+	Machine m = new Machine(1);
+	File rom = null;
+	try {
+	    for (int i = 0; i < args.length; i++) {
+		switch (args[i]) {
+		case "-c":
+		    m.setCompatLevel(CPU.CompatLevel.valueOf(args[++i]));
+		    break;
+		case "-r":
+		    m.setCycles(Integer.parseInt(args[++i]));
+		    break;
+		case "-s":
+		    m.setSeed(Long.parseLong(args[++i]));
+		    break;
+		default:
+		    if (rom != null)
+			usage();
+		    rom = new File(args[i]);
+		    break;
+		}
+	    }
+	} catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+	    usage();
+	}
+	if (rom == null)
+	    usage();
+
+	m.loadRom(rom.toPath());
+	Debugger d = m.getDebugger();
+	d.setListener((dbg, report) -> System.out.println(report));
+	m.runFrame(); //attaches the debugger and loads the program
+	d.pause();
+	runUntilStopped(m);
+
+	BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	for (;;) {
+	    System.out.print("> ");
+	    System.out.flush();
+	    String line = in.readLine();
+	    if (line == null || line.trim().equals("q"))
+		break;
+	    if (line.trim().isEmpty())
+		continue;
+	    String out = d.command(line);
+	    if (m.getState() == Machine.State.RUNNING)
+		runUntilStopped(m); //the stop reports itself
+	    else
+		System.out.println(out);
+	}
+    }
+}
@@ -0,0 +1,406 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/* breakpoints, memory watches, register conditions and stepping for one
+   machine. while none of them is set the cpu runs its usual loop and
+   never calls in here; once one is, the cpu steps one instruction at a
+   time through runStepped(), and memory accesses take the slow path only
+   while there are watches. a stop halts the machine after the frame, and
+   continuing or stepping resumes it. every method is meant for the
+   machine's thread: from elsewhere go through Machine.submit() */
+public class Debugger {
+    public interface Listener {
+	/* called on the machine's thread with why it stopped and where */
+	void stopped(Debugger d, String report);
+    }
+
+    private enum Step {
+	NONE, INTO, OVER, OUT
+    }
+
+    private static final String[] OPS = { "==", "!=", "<=", ">=", "<", ">" };
+    private static final String[] TARGETS = { "V0", "V1", "V2", "V3", "V4", "V5", "V6", "V7",
+					      "V8", "V9", "VA", "VB", "VC", "VD", "VE", "VF", "I", "DT", "ST" };
+
+    private static final class Watch {
+	final int from;
+	final int to;
+	final boolean read;
+	final boolean write;
+
+	Watch(int from, int to, boolean read, boolean write) {
+	    this.from = from;
+	    this.to = to;
+	    this.read = read;
+	    this.write = write;
+	}
+
+	public String toString() {
+	    return String.format("watch %03x-%03x %s%s", from, to, read ? "r" : "", write ? "w" : "");
+	}
+    }
+
+    /* breaks when the comparison becomes true, not for as long as it is */
+    private static final class Condition {
+	final int target; //index into TARGETS
+	final String op;
+	final int value;
+	boolean was = false;
+
+	Condition(int target, String op, int value) {
+	    this.target = target;
+	    this.op = op;
+	    this.value = value;
+	}
+
+	boolean test(CPU c) {
+	    int v = target < 16 ? c.getRegister(target) : target == 16 ? c.getI()
+		: target == 17 ? c.getDelayTimer() : c.getSoundTimer();
+	    switch (op) {
+	    case "==": return v == value;
+	    case "!=": return v != value;
+	    case "<=": return v <= value;
+	    case ">=": return v >= value;
+	    case "<": return v < value;
+	    default: return v > value;
+	    }
+	}
+
+	public String toString() {
+	    return String.format("if %s %s %x", TARGETS[target], op, value);
+	}
+    }
+
+    private final Machine machine;
+    private final CPU cpu;
+    private final long[] breakpoints = new long[CPU.MEM_SIZE / 64];
+    private int breakpointCount = 0;
+    private final List<Watch> watches = new ArrayList<>();
+    private final List<Condition> conditions = new ArrayList<>();
+    private Listener listener = null;
+
+    private Step step = Step.NONE;
+    private int stepTarget; //return address of the call being stepped over
+    private int stepDepth; //stack depth the step started at
+    private boolean resumed = false; //the next instruction is the one it stopped at
+    private String hit = null; //a watch the last instruction hit
+    private volatile String stopped = null;
+
+    Debugger(Machine machine) {
+	this.machine = machine;
+	this.cpu = machine.getCPU();
+    }
+
+    public void setListener(Listener l) {
+	this.listener = l;
+    }
+
+    /* true while there is anything to stop on */
+    boolean isActive() {
+	return breakpointCount > 0 || !watches.isEmpty() || !conditions.isEmpty() || step != Step.NONE;
+    }
+
+    boolean isWatching() {
+	return !watches.isEmpty();
+    }
+
+    /* why the machine is stopped, or null while it isn't */
+    public String getStopReason() {
+	return stopped;
+    }
+
+    public boolean isStopped() {
+	return stopped != null;
+    }
+
+    /* called by the cpu before each instruction */
+    boolean shouldStop() {
+	if (resumed) {
+	    resumed = false;
+	    return false;
+	}
+	String reason = hit;
+	hit = null;
+	int pc = cpu.getPC();
+	if (reason == null) {
+	    switch (step) {
+	    case INTO:
+		reason = "step";
+		break;
+	    case OVER:
+		if (pc == stepTarget && cpu.getStackDepth() <= stepDepth)
+		    reason = "step";
+		break;
+	    case OUT:
+		if (cpu.getStackDepth() < stepDepth)
+		    reason = "step";
+		break;
+	    default:
+		break;
+	    }
+	}
+	if (reason == null && isBreakpoint(pc))
+	    reason = String.format("breakpoint at %03x", pc);
+	for (Condition c : conditions) {
+	    boolean now = c.test(cpu);
+	    if (now && !c.was && reason == null)
+		reason = c.toString();
+	    c.was = now;
+	}
+	if (reason == null)
+	    return false;
+	step = Step.NONE;
+	stopped = reason;
+	cpu.updateHooks();
+	if (listener != null)
+	    listener.stopped(this, reason + "\n" + registers());
+	return true;
+    }
+
+    /* called by the cpu for every data access while there are watches */
+    void access(int address, boolean write) {
+	if (hit != null)
+	    return;
+	for (Watch w : watches) {
+	    if (address >= w.from && address <= w.to && (write ? w.write : w.read)) {
+		hit = String.format("%s at %03x (pc %03x)", write ? "write" : "read", address, (cpu.getPC() - 2) & (cpu.getMemorySize() - 1));
+		return;
+	    }
+	}
+    }
+
+    /* forgets any stop or step in progress, for a reset machine */
+    void reset() {
+	stopped = null;
+	step = Step.NONE;
+	hit = null;
+	resumed = false;
+	cpu.updateHooks();
+    }
+
+    public void setBreakpoint(int address) {
+	if (!isBreakpoint(address)) {
+	    breakpoints[address >>> 6] |= 1L << address;
+	    breakpointCount++;
+	}
+	cpu.updateHooks();
+    }
+
+    public void clearBreakpoint(int address) {
+	if (isBreakpoint(address)) {
+	    breakpoints[address >>> 6] &= ~(1L << address);
+	    breakpointCount--;
+	}
+	cpu.updateHooks();
+    }
+
+    public boolean isBreakpoint(int address) {
+	return (breakpoints[address >>> 6] & (1L << address)) != 0;
+    }
+
+    public void watch(int from, int to, boolean read, boolean write) {
+	watches.add(new Watch(from, to, read, write));
+	cpu.updateHooks();
+    }
+
+    /* target is V0 to VF, I, DT or ST and op a comparison; value is hex */
+    public void addCondition(String target, String op, int value) {
+	int t = indexOf(TARGETS, target.toUpperCase());
+	if (t < 0 || indexOf(OPS, op) < 0)
+	    throw new IllegalArgumentException("bad condition");
+	conditions.add(new Condition(t, op, value));
+	cpu.updateHooks();
+    }
+
+    public void clearAll() {
+	Arrays.fill(breakpoints, 0);
+	breakpointCount = 0;
+	watches.clear();
+	conditions.clear();
+	cpu.updateHooks();
+    }
+
+    public void cont() {
+	resume(Step.NONE);
+    }
+
+    public void step() {
+	resume(Step.INTO);
+    }
+
+    /* runs a 2NNN until it returns; anything else is a plain step */
+    public void stepOver() {
+	int pc = cpu.getPC();
+	if ((cpu.peek(pc) & 0xf0) != 0x20) {
+	    resume(Step.INTO);
+	    return;
+	}
+	stepTarget = (pc + 2) & (cpu.getMemorySize() - 1);
+	stepDepth = cpu.getStackDepth();
+	resume(Step.OVER);
+    }
+
+    /* runs until the current subroutine returns */
+    public void stepOut() {
+	if (cpu.getStackDepth() == 0) {
+	    resume(Step.INTO);
+	    return;
+	}
+	stepDepth = cpu.getStackDepth();
+	resume(Step.OUT);
+    }
+
+    /* stops before the next instruction; one waiting in FX0A stops once
+       it has its key */
+    public void pause() {
+	if (stopped != null)
+	    return;
+	step = Step.INTO;
+	resumed = false;
+	cpu.updateHooks();
+    }
+
+    private void resume(Step s) {
+	if (stopped == null && machine.getState() != Machine.State.HALT)
+	    return;
+	step = s;
+	stopped = null;
+	resumed = true;
+	hit = null;
+	cpu.updateHooks();
+	machine.resume();
+    }
+
+    public String registers() {
+	StringBuilder sb = new StringBuilder();
+	int pc = cpu.getPC();
+	sb.append(String.format("pc %03x (%02x%02x)  I %03x  DT %02x  ST %02x  stack", pc, cpu.peek(pc),
+				cpu.peek(pc + 1), cpu.getI(), cpu.getDelayTimer(), cpu.getSoundTimer()));
+	for (int i = 0; i < cpu.getStackDepth(); i++)
+	    sb.append(String.format(" %03x", cpu.getStackEntry(i)));
+	if (cpu.isWaitingForKey())
+	    sb.append("  (waiting for a key)");
+	sb.append('\n');
+	for (int i = 0; i < 16; i++)
+	    sb.append(String.format("V%X %02x%s", i, cpu.getRegister(i), i == 15 ? "" : " "));
+	return sb.toString();
+    }
+
+    private String memory(int address, int len) {
+	StringBuilder sb = new StringBuilder();
+	for (int i = 0; i < len; i++) {
+	    if (i % 16 == 0)
+		sb.append(i == 0 ? "" : "\n").append(String.format("%03x:", address + i));
+	    sb.append(String.format(" %02x", cpu.peek(address + i)));
+	}
+	return sb.toString();
+    }
+
+    private String list() {
+	StringBuilder sb = new StringBuilder();
+	for (int a = 0; a < CPU.MEM_SIZE; a++)
+	    if (isBreakpoint(a))
+		sb.append(String.format("break %03x\n", a));
+	int n = 1;
+	for (Watch w : watches)
+	    sb.append(n++).append(": ").append(w).append('\n');
+	for (Condition c : conditions)
+	    sb.append(n++).append(": ").append(c).append('\n');
+	return sb.length() == 0 ? "nothing set" : sb.substring(0, sb.length() - 1);
+    }
+
+    public static final String HELP =
+	"b ADDR            break at an address       bd ADDR   delete it\n" +
+	"w FROM[-TO] [rw]  watch memory reads and/or writes (default w)\n" +
+	"if REG OP VALUE   break when it becomes true; REG is V0-VF, I, DT or ST, OP == != < > <= >=\n" +
+	"l                 list what is set          del N     delete watch or condition N\n" +
+	"clear             delete everything\n" +
+	"c continue   s step   n step over   o step out   p pause\n" +
+	"r registers  m ADDR [LEN] memory      numbers are hex";
+
+    /* runs one command of the text interface the console and the window
+       share, and returns what to show */
+    public String command(String line) {
+	String[] a = line.trim().split("\\s+");
+	try {
+	    switch (a[0]) {
+	    case "b":
+		setBreakpoint(hex(a[1]));
+		return String.format("break %03x", hex(a[1]));
+	    case "bd":
+		clearBreakpoint(hex(a[1]));
+		return String.format("deleted break %03x", hex(a[1]));
+	    case "w": {
+		String[] r = a[1].split("-");
+		int from = hex(r[0]);
+		int to = r.length > 1 ? hex(r[1]) : from;
+		String mode = a.length > 2 ? a[2] : "w";
+		if (to < from || !mode.matches("r|w|rw|wr"))
+		    return "usage: w FROM[-TO] [r|w|rw]";
+		watch(from, to, mode.contains("r"), mode.contains("w"));
+		return watches.get(watches.size() - 1).toString();
+	    }
+	    case "if":
+		addCondition(a[1], a[2], hex(a[3]));
+		return conditions.get(conditions.size() - 1).toString();
+	    case "l":
+		return list();
+	    case "del": {
+		int n = Integer.parseInt(a[1]) - 1;
+		if (n < watches.size())
+		    watches.remove(n);
+		else
+		    conditions.remove(n - watches.size());
+		cpu.updateHooks();
+		return list();
+	    }
+	    case "clear":
+		clearAll();
+		return "nothing set";
+	    case "c":
+		cont();
+		break;
+	    case "s":
+		step();
+		break;
+	    case "n":
+		stepOver();
+		break;
+	    case "o":
+		stepOut();
+		break;
+	    case "p":
+		pause();
+		return "pausing";
+	    case "r":
+		return registers();
+	    case "m":
+		return memory(hex(a[1]), a.length > 2 ? hex(a[2]) : 16);
+	    case "help":
+	    case "?":
+		return HELP;
+	    default:
+		return "unknown command, try help";
+	    }
+	} catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+	    return "bad arguments, try help";
+	}
+	Machine.State s = machine.getState();
+	return s == Machine.State.RUNNING ? "running" : "machine is " + s;
+    }
+
+    private int hex(String s) {
+	int v = Integer.parseInt(s.startsWith("0x") ? s.substring(2) : s, 16);
+	if (v < 0 || v >= CPU.MEM_SIZE)
+	    throw new IllegalArgumentException("out of range");
+	return v;
+    }
+
+    private static int indexOf(String[] a, String s) {
+	for (int i = 0; i < a.length; i++)
+	    if (a[i].equals(s))
+		return i;
+	return -1;
+    }
+}
@@ -1,12 +1,29 @@
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import javax.swing.*;
 
 public class DisplayPanel extends JPanel implements ActionListener{
     private MachineScreen screen;
+    private FrameExchange frames;
+    private BufferedImage image;
+    private int[] raster;
+    private long[] shown; //words currently in the raster, then the flags
+    private MachineStats stats; //where render time is added up, if anywhere
     
     public DisplayPanel(MachineScreen screen) {
+	this(screen, null);
+    }
+
+    public DisplayPanel(MachineScreen screen, MachineStats stats) {
 	this.screen = screen;
+	this.stats = stats;
+	this.frames = screen.getFrames();
+	this.image = new BufferedImage(MachineScreen.MAX_COLUMNS, MachineScreen.MAX_ROWS, BufferedImage.TYPE_INT_RGB);
+	this.raster = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+	this.shown = new long[MachineScreen.WORDS + 1];
+	setOpaque(true);
     }
 
     @Override
@@ -16,8 +33,10 @@ public class DisplayPanel extends JPanel implements ActionListener{
 
     @Override
     public void paintComponent(Graphics g) {
-	super.paintComponent(g);
-	screen.draw(g);
+	long start = System.nanoTime();
+	present(g, getWidth(), getHeight());
+	if (stats != null)
+	    stats.rendered(System.nanoTime() - start);
     }
 
     public void startDisplay() {
@@ -26,6 +45,57 @@ public class DisplayPanel extends JPanel implements ActionListener{
     }
 
     public void actionPerformed(ActionEvent e) {
-	repaint();
+	long[] frame = frames.take();
+	if (frame == null)
+	    return; //nothing drawn since the last frame
+	long start = System.nanoTime();
+	if (stats != null && frames.getStamp() != 0)
+	    stats.inputShown(start - frames.getStamp());
+	if (update(frame))
+	    repaint();
+	if (stats != null)
+	    stats.rendered(System.nanoTime() - start);
+    }
+
+    /* scales the raster onto g, w by h */
+    void present(Graphics g, int w, int h) {
+	g.drawImage(image, 0, 0, w, h, null);
+    }
+
+    /* brings the raster up to date with a published frame,
+       refilling only the rows that differ; returns whether any did */
+    boolean update(long[] frame) {
+	boolean all = frame[MachineScreen.WORDS] != shown[MachineScreen.WORDS]; //mode changed
+	shown[MachineScreen.WORDS] = frame[MachineScreen.WORDS];
+	boolean hires = (frame[MachineScreen.WORDS] & 1) != 0;
+	int rows = hires ? 64 : 32;
+	int size = hires ? 1 : 2; //raster pixels per screen pixel
+	boolean changed = false;
+	for (int y = 0; y < rows; y++) {
+	    int a = MachineScreen.index(0, y);
+	    int b = MachineScreen.index(1, y);
+	    if (!all && frame[a] == shown[a] && frame[a + 1] == shown[a + 1]
+		&& frame[b] == shown[b] && frame[b + 1] == shown[b + 1])
+		continue;
+	    shown[a] = frame[a];
+	    shown[a + 1] = frame[a + 1];
+	    shown[b] = frame[b];
+	    shown[b + 1] = frame[b + 1];
+	    changed = true;
+	    for (int k = 0; k < 2 / size; k++)
+		paint(y * size, k * 64, size, frame[a + k], frame[b + k]);
+	}
+	return changed;
+    }
+
+    /* 64 pixels from the two planes' words, each size raster pixels square */
+    private void paint(int ry, int x, int size, long p0, long p1) {
+	int w = MachineScreen.MAX_COLUMNS;
+	for (int end = x + 64; x < end; x++, p0 <<= 1, p1 <<= 1) {
+	    int c = MachineScreen.PALETTE[(int)(p0 >>> 63) | (int)(p1 >>> 63) << 1];
+	    for (int dy = 0; dy < size; dy++)
+		for (int dx = 0; dx < size; dx++)
+		    raster[(ry + dy) * w + x * size + dx] = c;
+	}
     }
 }
@@ -0,0 +1,66 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/* turns the distinct frames of a recording into a file format. called
+   only on a FrameRecorder's encoder thread, with frames in order and
+   never two alike in a row */
+public interface FrameEncoder {
+    /* frame holds the screen's packed words and then its flags, as
+       MachineScreen.copyWords() and getFlags() give them, and is only
+       valid during the call. number is the machine's frame count when it
+       was taken; the frame is shown until the next one's number */
+    void frame(long[] frame, long number) throws IOException;
+
+    /* the recording ended before frame number end; flush and close */
+    void finish(long end) throws IOException;
+
+    /* an encoder for p by its extension: .gif for an animated GIF, .c8f
+       for a raw stream, or .png for a numbered sequence beside p. scale
+       is the size of a high resolution pixel */
+    static FrameEncoder open(Path p, int scale) throws IOException {
+	String name = p.getFileName().toString().toLowerCase();
+	if (name.endsWith(".gif"))
+	    return new GifWriter(p, scale);
+	if (name.endsWith(".c8f"))
+	    return new RawFrameWriter(p);
+	if (name.endsWith(".png"))
+	    return new PngSequence(p, scale);
+	throw new IllegalArgumentException("export to .gif, .c8f or .png, not " + name);
+    }
+
+    /* the frame at scale, always the size of the high resolution screen
+       so a recording keeps one size across mode switches */
+    static BufferedImage image(long[] frame, int scale) {
+	int n = MachineScreen.PALETTE.length;
+	byte[] r = new byte[n], g = new byte[n], b = new byte[n];
+	for (int i = 0; i < n; i++) {
+	    r[i] = (byte)(MachineScreen.PALETTE[i] >>> 16);
+	    g[i] = (byte)(MachineScreen.PALETTE[i] >>> 8);
+	    b[i] = (byte)MachineScreen.PALETTE[i];
+	}
+	int w = MachineScreen.MAX_COLUMNS * scale;
+	BufferedImage img = new BufferedImage(w, MachineScreen.MAX_ROWS * scale, BufferedImage.TYPE_BYTE_INDEXED,
+					      new IndexColorModel(2, n, r, g, b));
+	byte[] px = ((DataBufferByte)img.getRaster().getDataBuffer()).getData();
+	boolean hires = (frame[MachineScreen.WORDS] & 1) != 0;
+	int rows = hires ? 64 : 32;
+	int size = hires ? scale : scale * 2; //image pixels per screen pixel
+	for (int y = 0; y < rows; y++) {
+	    int at = y * size * w;
+	    for (int x = 0; x < (hires ? 128 : 64); x++) {
+		int shift = 63 - (x & 63);
+		long p0 = frame[MachineScreen.index(0, y) + (x >>> 6)] >>> shift;
+		long p1 = frame[MachineScreen.index(1, y) + (x >>> 6)] >>> shift;
+		byte c = (byte)((p0 & 1) | (p1 & 1) << 1);
+		for (int dx = 0; dx < size; dx++)
+		    px[at + x * size + dx] = c;
+	    }
+	    for (int dy = 1; dy < size; dy++)
+		System.arraycopy(px, at, px, at + dy * w, w);
+	}
+	return img;
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* triple buffered handoff of finished frames from the emulation thread to
+   the renderer. the writer fills its back buffer and swaps it for the
+   middle one, the reader swaps its front buffer for the middle one when a
+   newer frame is waiting there; neither side locks, waits or copies.
+   a frame can carry a timestamp, which stays with it until the reader
+   takes it; the stamp of a frame the reader never saw moves on to the
+   one that replaced it, the first to show what it drew */
+public class FrameExchange {
+    private static final int FRESH = 4;
+
+    private final long[][] buffers;
+    private final long[] stamps = new long[3]; //by buffer, 0 for none; the swaps order the accesses
+    private final AtomicInteger middle = new AtomicInteger(1);
+    private int back = 0; //only touched by the writer
+    private int front = 2; //only touched by the reader
+    private long stamp = 0; //of the frame the reader last took
+
+    //each counter has a single writing thread
+    private volatile long published = 0;
+    private volatile long presented = 0;
+    private volatile long dropped = 0;
+
+    public FrameExchange(int words) {
+	buffers = new long[3][words];
+    }
+
+    /* the buffer the next frame should be written into */
+    public long[] backBuffer() {
+	return buffers[back];
+    }
+
+    public void publish() {
+	publish(0);
+    }
+
+    /* stamp is a System.nanoTime() to go with the frame, or 0 */
+    public void publish(long stamp) {
+	int old;
+	do {
+	    //a frame still waiting is about to be dropped, so this one shows what it drew
+	    old = middle.get();
+	    long s = stamp;
+	    long carried = (old & FRESH) != 0 ? stamps[old & 3] : 0;
+	    if (carried != 0 && (s == 0 || carried - s < 0))
+		s = carried;
+	    stamps[back] = s;
+	} while (!middle.compareAndSet(old, back | FRESH)); //fails if the reader took it meanwhile
+	if ((old & FRESH) != 0)
+	    dropped++; //the reader never saw it
+	back = old & 3;
+	published++;
+    }
+
+    /* returns the newest complete frame, or null if none was published since
+       the last call. the array stays valid until the next call */
+    public long[] take() {
+	if ((middle.get() & FRESH) == 0)
+	    return null;
+	front = middle.getAndSet(front) & 3;
+	stamp = stamps[front];
+	stamps[front] = 0;
+	presented++;
+	return buffers[front];
+    }
+
+    /* the stamp of the frame take() last returned, or 0 */
+    public long getStamp() {
+	return stamp;
+    }
+
+    public long getPublished() {
+	return published;
+    }
+
+    public long getPresented() {
+	return presented;
+    }
+
+    public long getDropped() {
+	return dropped;
+    }
+}
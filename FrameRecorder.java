@@ -0,0 +1,158 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/* records what a machine shows, a frame at a time, into a FrameEncoder.
+   the machine's thread copies the screen into one of a few pooled
+   buffers and queues it; an encoder thread of its own skips frames
+   identical to the one before and encodes the rest. when every buffer
+   is still queued the machine's thread either waits for one, so a
+   headless recording is complete, or drops the frame, so a slow disk
+   never stalls a running program */
+public class FrameRecorder implements Closeable {
+    private static final int BUFFERS = 8;
+    private static final int FLAGS = MachineScreen.WORDS;
+    private static final int NUMBER = MachineScreen.WORDS + 1;
+
+    private final FrameEncoder encoder;
+    private final boolean drop;
+    private final BlockingQueue<long[]> free = new ArrayBlockingQueue<>(BUFFERS);
+    private final BlockingQueue<long[]> full = new ArrayBlockingQueue<>(BUFFERS + 1); //room for the end marker
+    private final long[] end = new long[0];
+    private final Thread thread;
+    private long captured = 0;
+
+    //each counter has a single writing thread
+    private volatile long dropped = 0;
+    private volatile long written = 0;
+    private volatile long repeated = 0;
+    private volatile IOException error = null;
+
+    /* with drop, frames the encoder has no room for are dropped rather
+       than waited for */
+    public FrameRecorder(FrameEncoder encoder, boolean drop) {
+	this.encoder = encoder;
+	this.drop = drop;
+	for (int i = 0; i < BUFFERS; i++)
+	    free.add(new long[MachineScreen.WORDS + 2]);
+	thread = new Thread(this::encode, "frame encoder");
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    /* called by the machine's thread once a frame, after it ran */
+    void capture(MachineScreen screen, long number) {
+	long[] b = drop ? free.poll() : take(free);
+	if (b == null) {
+	    dropped++;
+	    return;
+	}
+	screen.copyWords(b);
+	b[FLAGS] = screen.getFlags();
+	b[NUMBER] = number;
+	captured = number + 1;
+	put(full, b);
+    }
+
+    private void encode() {
+	long[] last = new long[MachineScreen.WORDS + 1];
+	boolean first = true;
+	for (;;) {
+	    long[] b = take(full);
+	    if (b == end)
+		break;
+	    long number = b[NUMBER];
+	    //plane selection is in the flags too, but only the mode changes the picture
+	    if (!first && ((b[FLAGS] ^ last[FLAGS]) & 1) == 0
+		&& Arrays.equals(b, 0, MachineScreen.WORDS, last, 0, MachineScreen.WORDS)) {
+		put(free, b);
+		repeated++;
+		continue;
+	    }
+	    System.arraycopy(b, 0, last, 0, last.length);
+	    put(free, b); //the machine can have it back before the encoding
+	    first = false;
+	    if (error != null)
+		continue; //the rest is dropped, so the machine never waits on a dead file
+	    try {
+		encoder.frame(last, number);
+		written++;
+	    } catch (IOException e) {
+		error = e;
+	    }
+	}
+	try {
+	    encoder.finish(captured);
+	} catch (IOException e) {
+	    if (error == null)
+		error = e;
+	}
+    }
+
+    /* distinct frames handed to the encoder */
+    public long getWritten() {
+	return written;
+    }
+
+    /* frames left out for being the same as the one before */
+    public long getRepeated() {
+	return repeated;
+    }
+
+    /* frames left out because the encoder was behind */
+    public long getDropped() {
+	return dropped;
+    }
+
+    /* waits for the queued frames to be encoded and finishes the file;
+       call from the thread that captures */
+    public void close() throws IOException {
+	put(full, end);
+	boolean interrupted = false;
+	for (;;) {
+	    try {
+		thread.join();
+		break;
+	    } catch (InterruptedException e) {
+		interrupted = true;
+	    }
+	}
+	if (interrupted)
+	    Thread.currentThread().interrupt();
+	if (error != null)
+	    throw error;
+    }
+
+    //as in TraceRecorder, the queues never stay full or empty for long
+    private static void put(BlockingQueue<long[]> q, long[] b) {
+	boolean interrupted = false;
+	for (;;) {
+	    try {
+		q.put(b);
+		break;
+	    } catch (InterruptedException e) {
+		interrupted = true;
+	    }
+	}
+	if (interrupted)
+	    Thread.currentThread().interrupt();
+    }
+
+    private static long[] take(BlockingQueue<long[]> q) {
+	boolean interrupted = false;
+	long[] b;
+	for (;;) {
+	    try {
+		b = q.take();
+		break;
+	    } catch (InterruptedException e) {
+		interrupted = true;
+	    }
+	}
+	if (interrupted)
+	    Thread.currentThread().interrupt();
+	return b;
+    }
+}
@@ -0,0 +1,93 @@
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/* an animated GIF that loops forever. GIF delays are in hundredths of a
+   second and viewers slow anything under two of them right down, so a
+   frame is held back until the next one shows how long it lasts, and one
+   that would last less than that gives way to the frame after it */
+public class GifWriter implements FrameEncoder {
+    private static final int MIN_DELAY = 2;
+
+    private final ImageOutputStream out;
+    private final ImageWriter writer;
+    private final int scale;
+    private BufferedImage pending = null;
+    private long pendingStart;
+    private boolean first = true;
+
+    public GifWriter(Path p, int scale) throws IOException {
+	this.scale = scale;
+	writer = ImageIO.getImageWritersByFormatName("gif").next();
+	Files.deleteIfExists(p); //the stream writes over a file without truncating it
+	out = new FileImageOutputStream(p.toFile());
+	writer.setOutput(out);
+	writer.prepareWriteSequence(null);
+    }
+
+    //frame numbers to hundredths, rounded
+    private static long centis(long frame) {
+	return (frame * 100 + Scheduler.FPS / 2) / Scheduler.FPS;
+    }
+
+    public void frame(long[] frame, long number) throws IOException {
+	if (pending != null && centis(number) - centis(pendingStart) >= MIN_DELAY) {
+	    write(pending, centis(number) - centis(pendingStart));
+	    pending = null;
+	}
+	if (pending == null)
+	    pendingStart = number;
+	pending = FrameEncoder.image(frame, scale);
+    }
+
+    public void finish(long end) throws IOException {
+	try {
+	    if (pending != null)
+		write(pending, Math.max(MIN_DELAY, centis(end) - centis(pendingStart)));
+	    writer.endWriteSequence();
+	} finally {
+	    writer.dispose();
+	    out.close();
+	}
+    }
+
+    private void write(BufferedImage img, long delay) throws IOException {
+	IIOMetadata meta = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(img), null);
+	String format = meta.getNativeMetadataFormatName();
+	IIOMetadataNode root = (IIOMetadataNode)meta.getAsTree(format);
+	IIOMetadataNode gce = child(root, "GraphicControlExtension");
+	gce.setAttribute("disposalMethod", "none");
+	gce.setAttribute("userInputFlag", "FALSE");
+	gce.setAttribute("transparentColorFlag", "FALSE");
+	gce.setAttribute("transparentColorIndex", "0");
+	gce.setAttribute("delayTime", Long.toString(Math.min(delay, 0xffff)));
+	if (first) {
+	    IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+	    loop.setAttribute("applicationID", "NETSCAPE");
+	    loop.setAttribute("authenticationCode", "2.0");
+	    loop.setUserObject(new byte[] { 1, 0, 0 }); //loop forever
+	    child(root, "ApplicationExtensions").appendChild(loop);
+	    first = false;
+	}
+	meta.setFromTree(format, root);
+	writer.writeToSequence(new IIOImage(img, null, meta), null);
+    }
+
+    private static IIOMetadataNode child(IIOMetadataNode parent, String name) {
+	for (int i = 0; i < parent.getLength(); i++)
+	    if (parent.item(i).getNodeName().equals(name))
+		return (IIOMetadataNode)parent.item(i);
+	IIOMetadataNode n = new IIOMetadataNode(name);
+	parent.appendChild(n);
+	return n;
+    }
+}
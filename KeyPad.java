@@ -1,132 +1,225 @@
-import javax.swing.*;
-import java.awt.event.*;
+import java.awt.event.KeyEvent;
+import java.awt.event.KeyListener;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+/* the hex keypad. any thread can press and release keys, the event
+   thread through the KeyListener methods; the keys held are one atomic
+   mask, so the machine's thread sees every change, and in order. the
+   machine samples it once a frame with poll() and latches the result for
+   the cpu. keyboard keys reach the keypad through a table by key code,
+   one of the built in layouts or one read from a file */
 public class KeyPad implements KeyListener {
-    private boolean[] keys = new boolean[16];
+    /* qwerty is the usual 1234/QWER/ASDF/ZXCV block, numpad puts each hex
+       digit on the number pad key with its name and A to F on / * - +
+       Enter and ., and arrows is qwerty with the arrow keys on 2 4 6 8
+       and space on 5, as most games steer */
+    public static final String[] LAYOUTS = { "qwerty", "numpad", "arrows" };
+    private static final int CODES = 256; //key codes a table covers
 
-    public KeyPad() {
-	for (boolean k : keys)
-	    k = false;
+    private final AtomicInteger down = new AtomicInteger(); //bit n set while key n is held
+    private final AtomicInteger pressed = new AtomicInteger(); //keys pressed since the last poll
+    private final AtomicLong presses = new AtomicLong();
+    private final AtomicLong releases = new AtomicLong();
+    private final AtomicLong firstEdge = new AtomicLong(); //nanoTime of the first change since the last poll
+    private volatile byte[] map = layout("qwerty");
+    private volatile String mapName = "qwerty";
+    private volatile Thread waiter = null; //woken by every event
+
+    //only touched by the machine's thread
+    private int latched = 0; //what the cpu sees, one bit per key
+    private int changes = 0;
+    private long sampledEdge = 0;
+
+    /* a built in layout by name, as a table from key code to hex key
+       with -1 for keys that aren't mapped */
+    public static byte[] layout(String name) {
+	byte[] t = new byte[CODES];
+	Arrays.fill(t, (byte)-1);
+	switch (name) {
+	case "arrows":
+	    t[KeyEvent.VK_UP] = 2;
+	    t[KeyEvent.VK_LEFT] = 4;
+	    t[KeyEvent.VK_RIGHT] = 6;
+	    t[KeyEvent.VK_DOWN] = 8;
+	    t[KeyEvent.VK_SPACE] = 5;
+	    qwerty(t); //and the qwerty keys as well
+	    break;
+	case "qwerty":
+	    qwerty(t);
+	    break;
+	case "numpad":
+	    for (int k = 0; k < 10; k++)
+		t[KeyEvent.VK_NUMPAD0 + k] = (byte)k;
+	    t[KeyEvent.VK_DIVIDE] = 0xa;
+	    t[KeyEvent.VK_MULTIPLY] = 0xb;
+	    t[KeyEvent.VK_SUBTRACT] = 0xc;
+	    t[KeyEvent.VK_ADD] = 0xd;
+	    t[KeyEvent.VK_ENTER] = 0xe;
+	    t[KeyEvent.VK_DECIMAL] = 0xf;
+	    break;
+	default:
+	    throw new IllegalArgumentException("no layout " + name);
+	}
+	return t;
+    }
+
+    private static void qwerty(byte[] t) {
+	bind(t, "1234", 0x1, 0x2, 0x3, 0xc);
+	bind(t, "QWER", 0x4, 0x5, 0x6, 0xd);
+	bind(t, "ASDF", 0x7, 0x8, 0x9, 0xe);
+	bind(t, "ZXCV", 0xa, 0x0, 0xb, 0xf);
+    }
+
+    //letters and digits are their own key codes
+    private static void bind(byte[] t, String keys, int... hex) {
+	for (int i = 0; i < hex.length; i++)
+	    t[keys.charAt(i)] = (byte)hex[i];
+    }
+
+    /* a table from a file of lines such as "UP 2" or "NUMPAD5 5": a key
+       by its KeyEvent.VK_ name without the VK_, then the hex key it
+       presses. several keys may press the same one; # starts a comment */
+    public static byte[] readMapping(Path p) throws IOException {
+	byte[] t = new byte[CODES];
+	Arrays.fill(t, (byte)-1);
+	int n = 0;
+	for (String line : Files.readAllLines(p)) {
+	    n++;
+	    int hash = line.indexOf('#');
+	    if (hash >= 0)
+		line = line.substring(0, hash);
+	    String[] f = line.trim().split("\\s+");
+	    if (f[0].isEmpty())
+		continue;
+	    try {
+		int code = KeyEvent.class.getField("VK_" + f[0].toUpperCase()).getInt(null);
+		int hex = Integer.parseInt(f[1], 16);
+		if (f.length != 2 || code >= CODES || hex < 0 || hex > 0xf)
+		    throw new IllegalArgumentException();
+		t[code] = (byte)hex;
+	    } catch (ReflectiveOperationException | RuntimeException e) {
+		throw new IOException(p + " line " + n + ": expected a key name and a hex key");
+	    }
+	}
+	return t;
+    }
+
+    /* swaps in another table; name is only for showing. keys held are
+       let go, since their releases would come through the new table */
+    public void setMapping(String name, byte[] table) {
+	if (table.length != CODES)
+	    throw new IllegalArgumentException("a key table has " + CODES + " entries");
+	map = table.clone();
+	mapName = name;
+	int held = down.getAndSet(0);
+	if (held != 0) {
+	    releases.addAndGet(Integer.bitCount(held));
+	    changed();
+	}
+    }
+
+    public String getMappingName() {
+	return mapName;
     }
 
     public void keyTyped(KeyEvent e) {
 	//only need for interface
     }
-    
+
     public void keyPressed(KeyEvent e) {
 	int code = e.getKeyCode();
-	switch (code) {
-	case KeyEvent.VK_1:
-	    keys[1] = true;
-	    break;
-	case KeyEvent.VK_2:
-	    keys[2] = true;
-	    break;
-	case KeyEvent.VK_3:
-	    keys[3] = true;
-	    break;
-	case KeyEvent.VK_4:
-	    keys[0xc] = true;
-	    break;
-	case KeyEvent.VK_Q:
-	    keys[4] = true;
-	    break;
-	case KeyEvent.VK_W:
-	    keys[5] = true;
-	    break;
-	case KeyEvent.VK_E:
-	    keys[6] = true;
-	    break;
-	case KeyEvent.VK_R:
-	    keys[0xd] = true;
-	    break;
-	case KeyEvent.VK_A:
-	    keys[7] = true;
-	    break;
-	case KeyEvent.VK_S:
-	    keys[8] = true;
-	    break;
-	case KeyEvent.VK_D:
-	    keys[9] = true;
-	    break;
-	case KeyEvent.VK_F:
-	    keys[0xe] = true;
-	    break;
-	case KeyEvent.VK_Z:
-	    keys[0xa] = true;
-	    break;
-	case KeyEvent.VK_X:
-	    keys[0] = true;
-	    break;
-	case KeyEvent.VK_C:
-	    keys[0xb] = true;
-	    break;
-	case KeyEvent.VK_V:
-	    keys[0xf] = true;
-	    break;
-	default:
-	    break;
-	}
+	if (code >= 0 && code < CODES && map[code] >= 0)
+	    press(map[code]);
     }
 
     public void keyReleased(KeyEvent e) {
 	int code = e.getKeyCode();
-	switch (code) {
-	case KeyEvent.VK_1:
-	    keys[1] = false;
-	    break;
-	case KeyEvent.VK_2:
-	    keys[2] = false;
-	    break;
-	case KeyEvent.VK_3:
-	    keys[3] = false;
-	    break;
-	case KeyEvent.VK_4:
-	    keys[0xc] = false;
-	    break;
-	case KeyEvent.VK_Q:
-	    keys[4] = false;
-	    break;
-	case KeyEvent.VK_W:
-	    keys[5] = false;
-	    break;
-	case KeyEvent.VK_E:
-	    keys[6] = false;
-	    break;
-	case KeyEvent.VK_R:
-	    keys[0xd] = false;
-	    break;
-	case KeyEvent.VK_A:
-	    keys[7] = false;
-	    break;
-	case KeyEvent.VK_S:
-	    keys[8] = false;
-	    break;
-	case KeyEvent.VK_D:
-	    keys[9] = false;
-	    break;
-	case KeyEvent.VK_F:
-	    keys[0xe] = false;
-	    break;
-	case KeyEvent.VK_Z:
-	    keys[0xa] = false;
-	    break;
-	case KeyEvent.VK_X:
-	    keys[0] = false;
-	    break;
-	case KeyEvent.VK_C:
-	    keys[0xb] = false;
-	    break;
-	case KeyEvent.VK_V:
-	    keys[0xf] = false;
-	    break;
-	default:
-	    break;
+	if (code >= 0 && code < CODES && map[code] >= 0)
+	    release(map[code]);
+    }
+
+    /* a thread parked waiting for input, unparked on every key change */
+    public void setWaiter(Thread t) {
+	waiter = t;
+    }
+
+    /* key n goes down, whether from the keyboard or a script. a press
+       seen again before a release, as from key repeat, changes nothing */
+    public void press(int key) {
+	int bit = 1 << (key & 0xf);
+	if ((down.getAndAccumulate(bit, (a, b) -> a | b) & bit) != 0)
+	    return;
+	pressed.getAndAccumulate(bit, (a, b) -> a | b);
+	presses.incrementAndGet();
+	changed();
+    }
+
+    public void release(int key) {
+	int bit = 1 << (key & 0xf);
+	if ((down.getAndAccumulate(bit, (a, b) -> a & ~b) & bit) == 0)
+	    return;
+	releases.incrementAndGet();
+	changed();
+    }
+
+    private void changed() {
+	firstEdge.compareAndSet(0, System.nanoTime());
+	Thread t = waiter;
+	if (t != null)
+	    LockSupport.unpark(t);
+    }
+
+    /* the keys as of now, bit n set for key n, for the machine's thread
+       to call once at the start of every frame. a key pressed and
+       released again since the last call counts as held, so a tap
+       shorter than a frame still reaches the program */
+    public int poll() {
+	sampledEdge = firstEdge.getAndSet(0);
+	return pressed.getAndSet(0) | down.get();
+    }
+
+    /* when the first key change the last poll() picked up happened, by
+       System.nanoTime(), or 0 if it picked up none */
+    public long getSampledEdge() {
+	return sampledEdge;
+    }
+
+    /* presses and releases since the keypad was made, not counting repeats */
+    public long getPresses() {
+	return presses.get();
+    }
+
+    public long getReleases() {
+	return releases.get();
+    }
+
+    /* sets the keys the cpu will see until the next latch. the machine
+       latches once per frame, so input only ever changes between frames
+       and a run can be recorded and replayed exactly */
+    public void latch(int mask) {
+	if (mask != latched) {
+	    latched = mask;
+	    changes++;
 	}
     }
 
+    public int getLatched() {
+	return latched;
+    }
+
+    /* bumped whenever the latched keys change, so a waiting cpu can tell
+       input changed */
+    public int getChanges() {
+	return changes;
+    }
+
     public boolean getKey(int key) {
-	//todo: check bounds
-	return keys[key];
+	return (latched & (1 << (key & 0xf))) != 0;
     }
 }
@@ -0,0 +1,612 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/* one complete emulated machine: cpu, screen, keypad, timers and its own
+   settings. machines share nothing, so any number of them can run in one
+   process, each on whatever thread calls run() or runFrames() */
+public class Machine implements Runnable {
+    public enum State {
+	RUNNING, RESET, HALT, FAULTED, STOPPED
+    }
+
+    private final CPU cpu;
+    private final MachineScreen screen;
+    private final KeyPad keypad;
+    private final Scheduler sched;
+
+    private volatile State state = State.RESET;
+    private volatile CPU.CompatLevel compat = CPU.CompatLevel.CHIP_48;
+    private volatile int cycles = 700;
+    private volatile boolean turbo = false;
+    private volatile CPU.OutOfBounds outOfBounds = CPU.OutOfBounds.FAULT;
+    private volatile boolean paused = false;
+    private volatile byte[] pendingRom = null;
+    private volatile String romSource = null; //file the pending or current program came from
+    private volatile MachineFault fault = null;
+    private volatile long seed = System.nanoTime();
+
+    private CPU.CompatLevel activeCompat = null; //settings as last applied by the machine's thread
+    private int activeCycles = -1;
+    private long frames = 0;
+    private byte[] rom = null; //as last loaded, for restarting it under a movie
+    private Movie movie = null;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); //run on the machine's thread
+    private final MachineStats stats = new MachineStats(this);
+    private volatile Debugger debugger = null;
+    private volatile SoundSink sound = null;
+    private Tone tone = Tone.SILENCE; //as last handed to the sink
+    private int toneChanges = -1;
+    private FrameRecorder recorder = null;
+
+    private static final int STATE_MAGIC = 0x43385353; //"C8SS"
+    private static final short STATE_VERSION = 6;
+    public static final int STATE_SIZE = 72 * 1024; //room for XO-CHIP's 64 KB of memory
+    private final ByteBuffer stateBuf = ByteBuffer.allocateDirect(STATE_SIZE);
+
+    private RewindBuffer rewind = null;
+    private final int[] dirtyPages = new int[CPU.MEM_SIZE / CPU.PAGE_SIZE];
+    private volatile boolean rewinding = false;
+
+    public Machine(int scale) {
+	this.cpu = new CPU();
+	this.screen = new MachineScreen(scale);
+	this.keypad = new KeyPad();
+	this.sched = new Scheduler();
+	cpu.setScreen(screen);
+	cpu.setKeyPad(keypad);
+	cpu.setTrap((c, address, write) -> {
+		System.err.println(String.format("<ERROR> out of bounds %s at %x, halting", write ? "write" : "read", address));
+		halt();
+	    });
+    }
+
+    public CPU getCPU() {
+	return cpu;
+    }
+
+    public MachineScreen getScreen() {
+	return screen;
+    }
+
+    public KeyPad getKeyPad() {
+	return keypad;
+    }
+
+    public State getState() {
+	return state;
+    }
+
+    /* the fault that stopped the machine, or null */
+    public MachineFault getFault() {
+	return fault;
+    }
+
+    public long getFrames() {
+	return frames;
+    }
+
+    public double getInstructionsPerSecond() {
+	return sched.getInstructionsPerSecond();
+    }
+
+    public MachineStats getStats() {
+	return stats;
+    }
+
+    /* gets the tone of every frame, silence while the machine isn't running */
+    public void setSound(SoundSink sound) {
+	this.sound = sound;
+    }
+
+    public SoundSink getSound() {
+	return sound;
+    }
+
+    //only makes a new tone when the sound changed
+    private Tone currentTone() {
+	boolean on = cpu.getSoundTimer() != 0;
+	if (on != tone.isOn() || cpu.getSoundChanges() != toneChanges) {
+	    toneChanges = cpu.getSoundChanges();
+	    tone = new Tone(on, cpu.getPattern(), cpu.getPitch());
+	}
+	return tone;
+    }
+
+    /* the machine's debugger, attached on first use at the next frame.
+       a stop halts the machine; resume() or the debugger continues it */
+    public Debugger getDebugger() {
+	if (debugger == null) {
+	    Debugger d = new Debugger(this);
+	    debugger = d;
+	    submit(() -> cpu.setDebugger(d));
+	}
+	return debugger;
+    }
+
+    /* settings are picked up by the machine's thread at the next frame */
+    public void setCompatLevel(CPU.CompatLevel cl) {
+	this.compat = cl;
+    }
+
+    public CPU.CompatLevel getCompatLevel() {
+	return compat;
+    }
+
+    public void setCycles(int cycles) {
+	this.cycles = cycles;
+    }
+
+    public int getCycles() {
+	return cycles;
+    }
+
+    /* what memory accesses past the top of memory do; under TRAP the cpu's
+       trap hook runs, which by default halts the machine after the frame */
+    public void setOutOfBounds(CPU.OutOfBounds policy) {
+	this.outOfBounds = policy;
+    }
+
+    public CPU.OutOfBounds getOutOfBounds() {
+	return outOfBounds;
+    }
+
+    public void setTurbo(boolean turbo) {
+	this.turbo = turbo;
+    }
+
+    public boolean isTurbo() {
+	return turbo;
+    }
+
+    /* CXNN's generator is reseeded with this at every reset */
+    public void setSeed(long seed) {
+	this.seed = seed;
+    }
+
+    public long getSeed() {
+	return seed;
+    }
+
+    /* holds the machine while its window is hidden */
+    public void setPaused(boolean paused) {
+	this.paused = paused;
+    }
+
+    /* loaded at 0x200 by the machine's thread, followed by a reset */
+    public void loadRom(byte[] data) {
+	loadRom(data, null);
+    }
+
+    public void loadRom(Path p) throws IOException {
+	loadRom(Files.readAllBytes(p), p.toString());
+    }
+
+    private void loadRom(byte[] data, String source) {
+	if (data.length > CPU.MEM_SIZE - 0x200)
+	    throw new IllegalArgumentException("data too large for emulated memory");
+	romSource = source;
+	pendingRom = data;
+	state = State.RESET;
+    }
+
+    /* only safe before the machine is started */
+    public void loadFont(byte[] data) {
+	cpu.load(data, CPU.FONT_START);
+    }
+
+    public void reset() {
+	state = State.RESET;
+    }
+
+    public void halt() {
+	if (state == State.RUNNING)
+	    state = State.HALT;
+    }
+
+    /* a machine the debugger stopped only resumes through the debugger */
+    public void resume() {
+	if (state == State.HALT && (debugger == null || !debugger.isStopped()))
+	    state = State.RUNNING;
+    }
+
+    public void stop() {
+	state = State.STOPPED;
+    }
+
+    /* runs task on the machine's thread between two frames */
+    public void submit(Runnable task) {
+	tasks.add(task);
+    }
+
+    /* writes the whole machine state into buf; call from the machine's
+       thread, or while it isn't running */
+    public void snapshot(ByteBuffer buf) {
+	buf.putInt(STATE_MAGIC);
+	buf.putShort(STATE_VERSION);
+	buf.putInt(activeCycles);
+	buf.putLong(frames);
+	sched.snapshot(buf);
+	cpu.snapshot(buf);
+	screen.snapshot(buf);
+    }
+
+    /* puts back what snapshot() wrote. the state is checked before anything
+       is changed, so a truncated or corrupt one leaves the machine as it was */
+    public void restore(ByteBuffer buf) {
+	int at = buf.position();
+	int header = 4 + 2 + 4 + 8 + Scheduler.STATE_SIZE; //up to the cpu's compat level
+	if (buf.remaining() < 6 || buf.getInt(at) != STATE_MAGIC)
+	    throw new IllegalArgumentException("not a save state");
+	if (buf.getShort(at + 4) != STATE_VERSION)
+	    throw new IllegalArgumentException("unsupported save state version");
+	if (buf.remaining() <= header)
+	    throw new IllegalArgumentException("truncated save state");
+	int cl = buf.get(at + header) & 0xff;
+	if (cl >= CPU.CompatLevel.values().length)
+	    throw new IllegalArgumentException("bad compat level " + cl + " in save state");
+	if (buf.remaining() < header + CPU.stateSize(CPU.CompatLevel.values()[cl]) + MachineScreen.STATE_SIZE)
+	    throw new IllegalArgumentException("truncated save state");
+	buf.position(at + 6);
+	cycles = activeCycles = buf.getInt();
+	frames = buf.getLong();
+	sched.restore(buf);
+	cpu.restore(buf);
+	compat = activeCompat = cpu.getCompatLevel();
+	screen.restore(buf);
+	fault = null;
+	pendingRom = null;
+	if (state == State.FAULTED || state == State.RESET)
+	    state = State.RUNNING;
+    }
+
+    /* the part of a frame that changed: counters, registers and display
+       mode always, then the memory pages written since the last delta and
+       the screen words that differ from shadow, which is updated to match */
+    void writeDelta(ByteBuffer buf, long[] shadow) {
+	buf.putLong(frames);
+	sched.snapshot(buf);
+	cpu.snapshotRegisters(buf);
+	buf.put((byte)screen.getFlags());
+	int n = cpu.takeDirtyPages(dirtyPages);
+	buf.putShort((short)n);
+	for (int i = 0; i < n; i++) {
+	    buf.put((byte)dirtyPages[i]);
+	    cpu.snapshotPage(buf, dirtyPages[i]);
+	}
+	int countAt = buf.position();
+	int changed = 0;
+	buf.putShort((short)0);
+	for (int i = 0; i < MachineScreen.WORDS; i++) {
+	    long w = screen.getWord(i);
+	    if (w != shadow[i]) {
+		shadow[i] = w;
+		buf.put((byte)i);
+		buf.putLong(w);
+		changed++;
+	    }
+	}
+	buf.putShort(countAt, (short)changed);
+    }
+
+    void readDelta(ByteBuffer buf, long[] shadow) {
+	frames = buf.getLong();
+	sched.restore(buf);
+	cpu.restoreRegisters(buf);
+	compat = activeCompat = cpu.getCompatLevel();
+	screen.setFlags(buf.get());
+	for (int n = buf.getShort(); n > 0; n--)
+	    cpu.restorePage(buf, buf.get() & 0xff);
+	for (int n = buf.getShort(); n > 0; n--) {
+	    int i = buf.get() & 0xff;
+	    long w = buf.getLong();
+	    screen.setWord(i, w);
+	    shadow[i] = w;
+	}
+    }
+
+    /* keeps a rewindable history of up to maxFrames frames in maxBytes,
+       with a full snapshot every keyInterval frames */
+    public void enableRewind(int maxBytes, int maxFrames, int keyInterval) {
+	RewindBuffer rb = new RewindBuffer(this, maxBytes, maxFrames, keyInterval);
+	submit(() -> rewind = rb);
+    }
+
+    public RewindBuffer getRewind() {
+	return rewind;
+    }
+
+    /* while set, each frame steps the machine one frame back in time
+       instead of forward */
+    public void setRewinding(boolean rewinding) {
+	this.rewinding = rewinding;
+    }
+
+    /* restarts the current program and records its input from the reset
+       on; call from the machine's thread, or while it isn't running */
+    public void startRecording() {
+	if (rom == null && pendingRom == null)
+	    throw new IllegalStateException("no program loaded");
+	byte[] low = new byte[0x200];
+	for (int i = 0; i < low.length; i++)
+	    low[i] = cpu.readMem(i);
+	if (pendingRom == null)
+	    pendingRom = rom;
+	movie = new Movie(low, pendingRom, compat, cycles, seed);
+	state = State.RESET;
+    }
+
+    /* ends the recording here and returns it, or null if none was running */
+    public Movie stopRecording() {
+	Movie mv = movie;
+	if (mv == null || mv.isPlaying())
+	    return null;
+	mv.finish(this);
+	movie = null;
+	return mv;
+    }
+
+    /* resets into the movie's program and settings, then feeds it the
+       recorded input instead of the keypad's until the movie ends */
+    public void play(Movie mv) {
+	compat = mv.getCompatLevel();
+	cycles = mv.getCycles();
+	seed = mv.getSeed();
+	cpu.load(mv.getLow(), 0);
+	romSource = null;
+	pendingRom = mv.getRom();
+	movie = mv;
+	state = State.RESET;
+    }
+
+    public Movie getMovie() {
+	return movie;
+    }
+
+    /* counts instructions by address and call stack from here on; call
+       from the machine's thread, or while it isn't running */
+    public void startProfiling() {
+	cpu.setProfiler(new Profiler());
+    }
+
+    /* ends profiling and returns what was counted, or null if it wasn't on */
+    public Profiler stopProfiling() {
+	Profiler p = cpu.getProfiler();
+	cpu.setProfiler(null);
+	return p;
+    }
+
+    /* records every instruction executed from here on into a trace file,
+       ending any trace already running; call from the machine's thread,
+       or while it isn't running */
+    public void startTrace(Path p) throws IOException {
+	stopTrace();
+	cpu.setTracer(new TraceRecorder(p));
+    }
+
+    /* ends the trace and returns how many records it holds, or -1 if none was running */
+    public long stopTrace() throws IOException {
+	TraceRecorder t = cpu.getTracer();
+	if (t == null)
+	    return -1;
+	cpu.setTracer(null);
+	t.close();
+	return t.getRecords();
+    }
+
+    /* records what the screen shows from here on, ending any recording
+       already running; call from the machine's thread, or while it isn't
+       running */
+    public void startExport(FrameRecorder r) throws IOException {
+	stopExport();
+	recorder = r;
+    }
+
+    /* ends the recording, once the encoder has caught up, and returns it
+       for its counts, or null if none was running */
+    public FrameRecorder stopExport() throws IOException {
+	FrameRecorder r = recorder;
+	if (r == null)
+	    return null;
+	recorder = null;
+	r.close();
+	return r;
+    }
+
+    /* snapshots into the machine's own buffer and writes it to p */
+    public void saveState(Path p) throws IOException {
+	stateBuf.clear();
+	snapshot(stateBuf);
+	stateBuf.flip();
+	try (FileChannel ch = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					     StandardOpenOption.TRUNCATE_EXISTING)) {
+	    while (stateBuf.hasRemaining())
+		ch.write(stateBuf);
+	}
+    }
+
+    public void loadState(Path p) throws IOException {
+	if (movie != null) {
+	    System.err.println("<ERROR> a loaded state can't be part of a movie, stopping it");
+	    movie = null;
+	}
+	stateBuf.clear();
+	try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+	    while (stateBuf.hasRemaining() && ch.read(stateBuf) >= 0)
+		;
+	}
+	stateBuf.flip();
+	restore(stateBuf);
+    }
+
+    public Thread start(String name) {
+	Thread t = new Thread(this, name);
+	t.start();
+	return t;
+    }
+
+    /* paced at 60 frames per second, or unpaced in turbo, until stopped */
+    public void run() {
+	keypad.setWaiter(Thread.currentThread());
+	while (state != State.STOPPED) {
+	    if (!paused)
+		runFrame();
+	    else if (sound != null)
+		sound.frame(Tone.SILENCE);
+	    screen.publish();
+	    if (turbo && state == State.RUNNING && !paused && cpu.isWaitingForKey())
+		sched.waitInput();
+	    else if (turbo && state == State.RUNNING && !paused)
+		sched.skipWait();
+	    else
+		sched.waitNextFrame();
+	}
+    }
+
+    /* runs n frames back to back on the calling thread, for headless use.
+       returns early if the machine faults or stops */
+    public void runFrames(long n) {
+	long end = frames + n;
+	while (runnable() && frames < end)
+	    runFrame();
+    }
+
+    /* runs frames until the cpu has executed the given total instruction count */
+    public void runInstructions(long total) {
+	while (runnable() && cpu.getInstructionCount() < total)
+	    runFrame(total - cpu.getInstructionCount());
+    }
+
+    private boolean runnable() {
+	return state == State.RUNNING || state == State.RESET;
+    }
+
+    public void runFrame() {
+	runFrame(Long.MAX_VALUE);
+    }
+
+    /* runs one frame, ending it early once limit instructions have run */
+    public void runFrame(long limit) {
+	Runnable task;
+	while ((task = tasks.poll()) != null)
+	    task.run();
+	SoundSink sink = sound;
+	if (sink != null && (state != State.RUNNING || (rewinding && rewind != null)))
+	    sink.frame(Tone.SILENCE);
+	switch (state) {
+	case RUNNING:
+	    if (rewinding && rewind != null) {
+		rewind.rewind(1);
+		break;
+	    }
+	    applySettings();
+	    int keys = keypad.poll(); //the one point in a frame input is sampled
+	    long edge = keypad.getSampledEdge();
+	    if (edge != 0) {
+		stats.inputSampled(System.nanoTime() - edge);
+		screen.markInput(edge);
+	    }
+	    if (movie != null)
+		keys = movie.input(frames, keys);
+	    keypad.latch(keys);
+	    int budget = (int)Math.min(sched.frameBudget(activeCycles), limit);
+	    MachineEvents.Frame event = new MachineEvents.Frame();
+	    event.begin();
+	    long start = System.nanoTime();
+	    int executed = 0;
+	    try {
+		executed = cpu.run(budget);
+		sched.spent(budget, executed);
+		if (debugger != null && debugger.isStopped())
+		    state = State.HALT;
+	    } catch (MachineFault f) {
+		fault = f;
+		state = State.FAULTED;
+		System.err.println("<ERROR> " + f.getMessage());
+	    }
+	    long nanos = System.nanoTime() - start;
+	    event.end();
+	    long lag = sched.getLag();
+	    boolean slow = nanos > Scheduler.FRAME_NANOS || lag > Scheduler.FRAME_NANOS;
+	    if (event.shouldCommit()) {
+		event.frame = frames;
+		event.budget = budget;
+		event.executed = executed;
+		event.commit();
+	    }
+	    if (slow) {
+		MachineEvents.LongFrame lf = new MachineEvents.LongFrame();
+		lf.frame = frames;
+		lf.emulation = nanos;
+		lf.lag = lag;
+		lf.commit();
+	    }
+	    if (recorder != null)
+		recorder.capture(screen, frames);
+	    frames++;
+	    stats.frame(cpu, frames, nanos, lag, slow);
+	    if (sink != null)
+		sink.frame(currentTone());
+	    if (rewind != null)
+		rewind.capture();
+	    if (movie != null && movie.isOver(frames)) {
+		String diff = movie.verify(this);
+		System.out.println(diff == null ? "movie finished, final state matches" : "<ERROR> movie finished, " + diff);
+		movie = null;
+	    }
+	    break;
+	case RESET:
+	    applySettings();
+	    byte[] rom = pendingRom;
+	    if (rom != null) {
+		pendingRom = null;
+		MachineEvents.RomLoad load = new MachineEvents.RomLoad();
+		load.source = romSource;
+		load.size = rom.length;
+		load.compat = activeCompat.toString();
+		load.commit();
+		if (rom.length > cpu.getMemorySize() - 0x200) {
+		    fault = new MachineFault("program too large for " + activeCompat + " memory", 0x200);
+		    state = State.FAULTED;
+		    System.err.println("<ERROR> " + fault.getMessage());
+		    break;
+		}
+		cpu.load(Arrays.copyOf(rom, cpu.getMemorySize() - 0x200), 0x200); //clears what a previous program left
+		this.rom = rom;
+	    }
+	    cpu.reset();
+	    cpu.seed(seed);
+	    sched.resetBudget();
+	    keypad.latch(0);
+	    if (movie != null)
+		movie.begin(frames, cpu.getInstructionCount());
+	    if (rewind != null)
+		rewind.clear(); //history of another program, or from before the reset
+	    if (debugger != null)
+		debugger.reset();
+	    fault = null;
+	    state = State.RUNNING;
+	    break;
+	default:
+	    break;
+	}
+    }
+
+    private void applySettings() {
+	cpu.setOutOfBounds(outOfBounds);
+	if (activeCompat != compat) {
+	    activeCompat = compat;
+	    cpu.setCompatLevel(activeCompat);
+	}
+	if (activeCycles != cycles) {
+	    activeCycles = cycles;
+	    cpu.setCyclesPerSecond(activeCycles);
+	}
+    }
+}
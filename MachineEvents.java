@@ -0,0 +1,61 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/* flight recorder events; a disabled event costs one allocation that
+   usually never escapes, so these are always emitted */
+public class MachineEvents {
+    @Name("chip8.Frame")
+    @Label("Frame")
+    @Category("Chip8")
+    @Description("One emulated frame, timed over the instructions it ran")
+    @StackTrace(false)
+    public static class Frame extends Event {
+	@Label("Frame")
+	long frame;
+
+	@Label("Budget")
+	int budget;
+
+	@Label("Executed")
+	int executed;
+    }
+
+    @Name("chip8.LongFrame")
+    @Label("Long Frame")
+    @Category("Chip8")
+    @Description("A frame that took longer than a 60 Hz frame to emulate, or finished that late")
+    @StackTrace(false)
+    public static class LongFrame extends Event {
+	@Label("Frame")
+	long frame;
+
+	@Label("Emulation Time")
+	@Timespan(Timespan.NANOSECONDS)
+	long emulation;
+
+	@Label("Scheduler Lag")
+	@Timespan(Timespan.NANOSECONDS)
+	long lag;
+    }
+
+    @Name("chip8.RomLoad")
+    @Label("ROM Load")
+    @Category("Chip8")
+    @Description("A program loaded into a machine at reset")
+    @StackTrace(false)
+    public static class RomLoad extends Event {
+	@Label("Source")
+	String source;
+
+	@Label("Size")
+	int size;
+
+	@Label("Compat Level")
+	String compat;
+    }
+}
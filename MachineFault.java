@@ -0,0 +1,16 @@
+/* thrown out of a running CPU when the program does something the machine
+   can't continue from; the machine that hosts it halts, nothing else does */
+public class MachineFault extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int pc;
+
+    public MachineFault(String message, int pc) {
+	super(String.format("%s (pc %04x)", message, pc));
+	this.pc = pc;
+    }
+
+    public int getPC() {
+	return pc;
+    }
+}
@@ -1,64 +1,287 @@
-import java.awt.Graphics;
-import java.awt.Color;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+/* the display, at 64x32 or, for SCHIP and XO-CHIP, 128x64, with XO-CHIP's
+   two bitplanes. every row is stored as two words per plane whatever the
+   mode, leftmost pixel in the high bit of the first; at 64x32 only the
+   first word of each row is used, so low resolution costs what it always
+   did and scrolls are word shifts and array copies */
 public class MachineScreen {
-    private int xmax = 64;
-    private int ymax = 32;
+    public static final int PLANES = 2;
+    public static final int MAX_COLUMNS = 128;
+    public static final int MAX_ROWS = 64;
+    public static final int WORDS = PLANES * MAX_ROWS * 2;
+    public static final int STATE_SIZE = 1 + WORDS * 8; //what snapshot() writes
+
+    private boolean hires = false;
+    private int selected = 1; //planes drawn, cleared and scrolled, one bit each
     private int scale;
-    private int[] pixels = null;
+    private final long[] words = new long[WORDS];
+    private long dirty = -1L; //rows changed since the last published frame
+    private long input = 0; //nanoTime of the key change this frame sampled, or 0
+    private final FrameExchange frames;
+
+    //colours for each combination of the two planes' bits
+    public static final int[] PALETTE = { 0x000000, 0xffffff, 0xaaaaaa, 0x555555 };
+    public static final int FOREGROUND = PALETTE[1];
+    public static final int BACKGROUND = PALETTE[0];
 
-    public MachineScreen(int xmax, int ymax, int scale) {
+    /* scale is the size of a low resolution pixel */
+    public MachineScreen(int scale) {
 	this.scale = scale;
-	this.xmax = xmax;
-	this.ymax = ymax;
-	this.pixels = new int[xmax * ymax];
-	for (int i : pixels)
-	    i = 0;
+	this.frames = new FrameExchange(WORDS + 1); //the flags follow the planes
+    }
+
+    /* where row y of plane p starts in the packed words */
+    public static int index(int p, int y) {
+	return (p * MAX_ROWS + y) * 2;
     }
 
     public int getWidth() {
-	return xmax * scale;
+	return 64 * scale;
     }
 
     public int getHeight() {
-	return ymax * scale;
+	return 32 * scale;
+    }
+
+    public int getColumns() {
+	return hires ? 128 : 64;
+    }
+
+    public int getRows() {
+	return hires ? 64 : 32;
+    }
+
+    public boolean isHires() {
+	return hires;
+    }
+
+    /* switching resolution clears every plane */
+    public void setHires(boolean hires) {
+	this.hires = hires;
+	Arrays.fill(words, 0);
+	dirty = -1L;
+    }
+
+    /* FN01: the planes the following draws, clears and scrolls affect */
+    public void selectPlanes(int mask) {
+	selected = mask & ((1 << PLANES) - 1);
+    }
+
+    public boolean isSelected(int p) {
+	return (selected & (1 << p)) != 0;
+    }
+
+    /* resolution and plane selection in one value, for saving */
+    public int getFlags() {
+	return (hires ? 1 : 0) | selected << 1;
+    }
+
+    public void setFlags(int flags) {
+	hires = (flags & 1) != 0;
+	selected = (flags >>> 1) & ((1 << PLANES) - 1);
+	dirty = -1L;
     }
 
     public void setPixel(int x, int y, int color) {
-	pixels[(y % ymax) * xmax + (x % xmax)] = color;
+	x &= getColumns() - 1;
+	y &= getRows() - 1;
+	int i = index(0, y) + (x >>> 6);
+	long bit = Long.MIN_VALUE >>> (x & 63);
+	if (color != 0)
+	    words[i] |= bit;
+	else
+	    words[i] &= ~bit;
+	dirty |= 1L << y;
     }
 
     public int getPixel(int x, int y) {
-	return pixels[(y % ymax) * xmax + (x % xmax)];
+	x &= getColumns() - 1;
+	y &= getRows() - 1;
+	return (int)(words[index(0, y) + (x >>> 6)] >>> (63 - (x & 63))) & 1;
+    }
+
+    /* xors a sprite row of width pixels (8 or 16, leftmost in the high bit
+       of the low width bits of line) into plane p at x, y (already on screen) and returns true
+       if any lit pixel was turned off. with wrap the pixels past the right
+       edge come back in on the left, otherwise they are clipped */
+    public boolean xorRow(int p, int x, int y, int line, int width, boolean wrap) {
+	long m = (long)line << (64 - width);
+	if (hires)
+	    return xorWideRow(p, x, y, m, wrap);
+	m = wrap ? Long.rotateRight(m, x) : m >>> x;
+	int i = index(p, y);
+	long r = words[i];
+	words[i] = r ^ m;
+	if (m != 0)
+	    dirty |= 1L << y;
+	return (r & m) != 0;
+    }
+
+    //kept apart so the low resolution path stays small enough to inline
+    private boolean xorWideRow(int p, int x, int y, long m, boolean wrap) {
+	int i = index(p, y);
+	long hi, lo;
+	if (x < 64) {
+	    hi = m >>> x;
+	    lo = x == 0 ? 0 : m << (64 - x);
+	} else {
+	    int s = x - 64;
+	    lo = m >>> s;
+	    hi = wrap && s != 0 ? m << (64 - s) : 0; //past the right edge
+	}
+	long r0 = words[i];
+	long r1 = words[i + 1];
+	words[i] = r0 ^ hi;
+	words[i + 1] = r1 ^ lo;
+	if ((hi | lo) != 0)
+	    dirty |= 1L << y;
+	return ((r0 & hi) | (r1 & lo)) != 0;
     }
 
+    /* clears the selected planes. rows below the current resolution are
+       never drawn in, so only the visible ones need it */
     public void clear() {
-	for (int x = 0; x < xmax; x++) {
-	    for (int y = 0; y < ymax; y++) {
-		setPixel(x, y, 0);
+	int rows = getRows();
+	for (int p = 0; p < PLANES; p++)
+	    if (isSelected(p))
+		Arrays.fill(words, index(p, 0), index(p, rows), 0);
+	dirty = -1L;
+    }
+
+    /* back to low resolution with only the first plane selected, all clear */
+    public void reset() {
+	selected = 1;
+	setHires(false);
+    }
+
+    public void scrollDown(int n) {
+	int rows = getRows();
+	n = Math.min(n, rows);
+	for (int p = 0; p < PLANES; p++) {
+	    if (!isSelected(p))
+		continue;
+	    int base = index(p, 0);
+	    System.arraycopy(words, base, words, base + n * 2, (rows - n) * 2);
+	    Arrays.fill(words, base, base + n * 2, 0);
+	}
+	dirty = -1L;
+    }
+
+    public void scrollUp(int n) {
+	int rows = getRows();
+	n = Math.min(n, rows);
+	for (int p = 0; p < PLANES; p++) {
+	    if (!isSelected(p))
+		continue;
+	    int base = index(p, 0);
+	    System.arraycopy(words, base + n * 2, words, base, (rows - n) * 2);
+	    Arrays.fill(words, base + (rows - n) * 2, base + rows * 2, 0);
+	}
+	dirty = -1L;
+    }
+
+    /* n is below 64 */
+    public void scrollRight(int n) {
+	int rows = getRows();
+	for (int p = 0; p < PLANES; p++) {
+	    if (!isSelected(p))
+		continue;
+	    for (int i = index(p, 0), end = index(p, rows); i < end; i += 2) {
+		if (hires)
+		    words[i + 1] = (words[i + 1] >>> n) | (words[i] << (64 - n));
+		words[i] >>>= n;
 	    }
 	}
+	dirty = -1L;
+    }
+
+    public void scrollLeft(int n) {
+	int rows = getRows();
+	for (int p = 0; p < PLANES; p++) {
+	    if (!isSelected(p))
+		continue;
+	    for (int i = index(p, 0), end = index(p, rows); i < end; i += 2) {
+		if (hires) {
+		    words[i] = (words[i] << n) | (words[i + 1] >>> (64 - n));
+		    words[i + 1] <<= n;
+		} else {
+		    words[i] <<= n;
+		}
+	    }
+	}
+	dirty = -1L;
+    }
+
+    /* the frame being run sampled a key change made at nanos. if it
+       draws anything, its published frame is stamped with the time, for
+       measuring input latency; if not, the change is forgotten rather
+       than charged to some later frame */
+    public void markInput(long nanos) {
+	input = nanos;
     }
 
-    public void draw(Graphics g) {
-	for (int x = 0; x < xmax; x++) {
-	    for (int y = 0; y < ymax; y++) {
-		Color c;
-		switch (getPixel(x, y)) {
-		case 0:
-		    c = Color.BLACK;
-		    break;
-		case 1:
-		    c = Color.WHITE;
-		    break;
-		default:
-		    c = Color.RED;
-		    System.out.println("<ERROR> unsupported color in screen buf");
-		    break;
+    /* called by the emulation thread at frame boundaries; hands a copy of
+       the screen to the renderer if anything was drawn since the last one */
+    public void publish() {
+	long stamp = input;
+	input = 0;
+	if (dirty == 0)
+	    return;
+	long[] back = frames.backBuffer();
+	copyWords(back);
+	back[WORDS] = getFlags();
+	frames.publish(stamp);
+	dirty = 0;
+    }
+
+    public void snapshot(ByteBuffer buf) {
+	buf.put((byte)getFlags());
+	for (long w : words)
+	    buf.putLong(w);
+    }
+
+    public void restore(ByteBuffer buf) {
+	setFlags(buf.get());
+	for (int i = 0; i < WORDS; i++)
+	    words[i] = buf.getLong();
+    }
+
+    /* 64 bit FNV-1a over the mode and the visible words, for comparing screens */
+    public long hash() {
+	long h = 0xcbf29ce484222325L;
+	h ^= hires ? 1 : 0;
+	h *= 0x100000001b3L;
+	int rows = getRows();
+	int step = hires ? 1 : 2; //only the first word of a row is used at 64x32
+	for (int p = 0; p < PLANES; p++) {
+	    for (int i = index(p, 0), end = index(p, rows); i < end; i += step) {
+		long w = words[i];
+		for (int b = 0; b < 8; b++, w >>>= 8) {
+		    h ^= w & 0xff;
+		    h *= 0x100000001b3L;
 		}
-		g.setColor(c);
-		g.fillRect(x * scale, y * scale, scale, scale);
 	    }
 	}
+	return h;
+    }
+
+    public FrameExchange getFrames() {
+	return frames;
+    }
+
+    public long getWord(int i) {
+	return words[i];
+    }
+
+    public void setWord(int i, long w) {
+	words[i] = w;
+	dirty |= 1L << ((i >>> 1) & (MAX_ROWS - 1));
+    }
+
+    /* copies the packed words into dst, which must hold WORDS of them */
+    public void copyWords(long[] dst) {
+	System.arraycopy(words, 0, dst, 0, WORDS);
     }
 }
@@ -0,0 +1,176 @@
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/* runtime metrics of one machine. each counter has a single writer, the
+   machine's thread once per frame or the renderer once per repaint, and
+   is only published through a volatile store, so leaving them on costs
+   a couple of clock reads a frame and nothing per instruction */
+public class MachineStats implements MachineStatsMBean {
+    private static final int OPCODE_INTERVAL = Scheduler.FPS; //frames between opcode count refreshes
+
+    private final Machine machine;
+
+    //written by the machine's thread
+    private volatile long instructions = 0;
+    private volatile long frames = 0;
+    private volatile long longFrames = 0;
+    private volatile long lag = 0;
+    private volatile long maxLag = 0;
+    private volatile long emulationNanos = 0;
+    private volatile long[] opcodeClasses = new long[16];
+    private int untilOpcodes = 0;
+    private volatile long inputSample = 0;
+
+    //written by the renderer
+    private volatile long renderNanos = 0;
+    private volatile long inputLatency = 0;
+    private volatile long maxInputLatency = 0;
+
+    private ObjectName name = null;
+
+    MachineStats(Machine machine) {
+	this.machine = machine;
+    }
+
+    /* called by the machine's thread after each emulated frame */
+    void frame(CPU cpu, long frames, long nanos, long lag, boolean slow) {
+	this.instructions = cpu.getInstructionCount();
+	this.frames = frames;
+	this.emulationNanos += nanos;
+	this.lag = lag;
+	if (lag > maxLag)
+	    maxLag = lag;
+	if (slow)
+	    longFrames++;
+	if (--untilOpcodes <= 0) {
+	    long[] counts = new long[16];
+	    cpu.countOpClasses(counts);
+	    opcodeClasses = counts;
+	    untilOpcodes = OPCODE_INTERVAL;
+	}
+    }
+
+    /* called by the machine's thread when a frame picked up a key change */
+    void inputSampled(long nanos) {
+	inputSample = nanos;
+    }
+
+    /* called by the one thread that renders the machine's screen */
+    public void rendered(long nanos) {
+	renderNanos += nanos;
+    }
+
+    /* called by the renderer when it takes a frame drawn after a key change */
+    public void inputShown(long nanos) {
+	inputLatency = nanos;
+	if (nanos > maxInputLatency)
+	    maxInputLatency = nanos;
+    }
+
+    /* makes the stats visible to JMX clients such as jconsole as
+       chip8:type=Machine,name=<name> */
+    public void register(String name) throws JMException {
+	ObjectName on = new ObjectName("chip8:type=Machine,name=" + ObjectName.quote(name));
+	ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+	this.name = on;
+    }
+
+    public void unregister() throws JMException {
+	if (name != null)
+	    ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+	name = null;
+    }
+
+    public String getState() {
+	return machine.getState().toString();
+    }
+
+    public String getCompatLevel() {
+	return machine.getCompatLevel().toString();
+    }
+
+    public int getCycles() {
+	return machine.getCycles();
+    }
+
+    public boolean isTurbo() {
+	return machine.isTurbo();
+    }
+
+    public double getInstructionsPerSecond() {
+	return machine.getInstructionsPerSecond();
+    }
+
+    public long getInstructions() {
+	return instructions;
+    }
+
+    public long getFramesEmulated() {
+	return frames;
+    }
+
+    public long getFramesPublished() {
+	return machine.getScreen().getFrames().getPublished();
+    }
+
+    public long getFramesPresented() {
+	return machine.getScreen().getFrames().getPresented();
+    }
+
+    public long getFramesDropped() {
+	return machine.getScreen().getFrames().getDropped();
+    }
+
+    public long getLongFrames() {
+	return longFrames;
+    }
+
+    public double getSchedulerLagMillis() {
+	return lag / 1e6;
+    }
+
+    public double getMaxSchedulerLagMillis() {
+	return maxLag / 1e6;
+    }
+
+    public double getEmulationMillis() {
+	return emulationNanos / 1e6;
+    }
+
+    public double getRenderMillis() {
+	return renderNanos / 1e6;
+    }
+
+    public long[] getOpcodeClassCounts() {
+	return opcodeClasses.clone();
+    }
+
+    public long getKeyPresses() {
+	return machine.getKeyPad().getPresses();
+    }
+
+    public long getKeyReleases() {
+	return machine.getKeyPad().getReleases();
+    }
+
+    public double getInputSampleMillis() {
+	return inputSample / 1e6;
+    }
+
+    public double getInputLatencyMillis() {
+	return inputLatency / 1e6;
+    }
+
+    public double getMaxInputLatencyMillis() {
+	return maxInputLatency / 1e6;
+    }
+
+    public void resetMaxInputLatency() {
+	maxInputLatency = 0;
+    }
+
+    public void resetMaxSchedulerLag() {
+	maxLag = 0; //may lose a frame's lag to a racing store, which is fine
+    }
+}
@@ -0,0 +1,35 @@
+/* what a running machine exposes over JMX; times are cumulative, so
+   monitoring can derive rates from successive reads */
+public interface MachineStatsMBean {
+    String getState();
+    String getCompatLevel();
+    int getCycles();
+    boolean isTurbo();
+
+    double getInstructionsPerSecond();
+    long getInstructions();
+    long getFramesEmulated();
+    long getFramesPublished();
+    long getFramesPresented();
+    long getFramesDropped();
+    long getLongFrames();
+
+    double getSchedulerLagMillis();
+    double getMaxSchedulerLagMillis();
+    double getEmulationMillis();
+    double getRenderMillis();
+
+    /* instructions executed by top nibble, 0NNN to FNNN */
+    long[] getOpcodeClassCounts();
+
+    long getKeyPresses();
+    long getKeyReleases();
+    /* from the last key change to the frame that sampled it, and, when
+       that frame drew something, to the renderer taking the result */
+    double getInputSampleMillis();
+    double getInputLatencyMillis();
+    double getMaxInputLatencyMillis();
+
+    void resetMaxSchedulerLag();
+    void resetMaxInputLatency();
+}
@@ -0,0 +1,224 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/* a recorded run: the program, the settings and seed it was started with,
+   and every change of the latched keys keyed by frame since the reset.
+   since input only changes between frames and CXNN is seeded, playing it
+   back repeats the run exactly, and the hashes taken when recording
+   stopped check that it did. usage:
+   java Movie <movie file>... */
+public class Movie {
+    private static final int MAGIC = 0x43384d56; //"C8MV"
+    private static final short VERSION = 1;
+
+    private final byte[] low; //memory below 0x200, so a custom font comes along
+    private final byte[] rom;
+    private final CPU.CompatLevel compat;
+    private final int cycles;
+    private final long seed;
+
+    //key mask changes, sorted by frame
+    private int[] eventFrame = new int[64];
+    private int[] eventMask = new int[64];
+    private int events = 0;
+    private int cursor = 0;
+
+    //how the recording ended, relative to the reset
+    private int length = -1;
+    private long instructions;
+    private long cpuHash;
+    private long screenHash;
+
+    private final boolean playing;
+    private long startFrame;
+    private long startInstructions;
+
+    public Movie(byte[] low, byte[] rom, CPU.CompatLevel compat, int cycles, long seed) {
+	this(low, rom, compat, cycles, seed, false);
+    }
+
+    private Movie(byte[] low, byte[] rom, CPU.CompatLevel compat, int cycles, long seed, boolean playing) {
+	this.low = low;
+	this.rom = rom;
+	this.compat = compat;
+	this.cycles = cycles;
+	this.seed = seed;
+	this.playing = playing;
+    }
+
+    public byte[] getLow() {
+	return low;
+    }
+
+    public byte[] getRom() {
+	return rom;
+    }
+
+    public CPU.CompatLevel getCompatLevel() {
+	return compat;
+    }
+
+    public int getCycles() {
+	return cycles;
+    }
+
+    public long getSeed() {
+	return seed;
+    }
+
+    public boolean isPlaying() {
+	return playing;
+    }
+
+    /* frames recorded, or -1 while still recording */
+    public int getLength() {
+	return length;
+    }
+
+    /* called by the machine right after the reset the movie starts from */
+    void begin(long frame, long instructions) {
+	startFrame = frame;
+	startInstructions = instructions;
+	cursor = 0;
+    }
+
+    /* the keys for the frame about to run: while recording the live keys,
+       noting any change, and while playing the recorded ones */
+    int input(long frame, int live) {
+	int f = (int)(frame - startFrame);
+	if (playing) {
+	    while (cursor > 0 && eventFrame[cursor - 1] > f)
+		cursor--; //rewound
+	    while (cursor < events && eventFrame[cursor] <= f)
+		cursor++;
+	    return cursor == 0 ? 0 : eventMask[cursor - 1];
+	}
+	while (events > 0 && eventFrame[events - 1] >= f)
+	    events--; //rewound, so the rest never happened
+	int last = events == 0 ? 0 : eventMask[events - 1];
+	if (live != last) {
+	    if (events == eventFrame.length) {
+		eventFrame = Arrays.copyOf(eventFrame, events * 2);
+		eventMask = Arrays.copyOf(eventMask, events * 2);
+	    }
+	    eventFrame[events] = f;
+	    eventMask[events] = live;
+	    events++;
+	}
+	return live;
+    }
+
+    /* true once a movie being played has supplied all its frames */
+    boolean isOver(long frame) {
+	return playing && frame - startFrame >= length;
+    }
+
+    /* ends a recording at the machine's current state */
+    void finish(Machine m) {
+	length = (int)(m.getFrames() - startFrame);
+	instructions = m.getCPU().getInstructionCount() - startInstructions;
+	cpuHash = m.getCPU().hash();
+	screenHash = m.getScreen().hash();
+    }
+
+    /* compares the machine against the end of the recording; null if it
+       matches, otherwise what differs */
+    public String verify(Machine m) {
+	StringBuilder diff = new StringBuilder();
+	long f = m.getFrames() - startFrame;
+	if (f != length)
+	    diff.append(String.format(" frames %d, expected %d;", f, length));
+	long n = m.getCPU().getInstructionCount() - startInstructions;
+	if (n != instructions)
+	    diff.append(String.format(" instructions %d, expected %d;", n, instructions));
+	if (m.getCPU().hash() != cpuHash)
+	    diff.append(String.format(" cpu hash %016x, expected %016x;", m.getCPU().hash(), cpuHash));
+	if (m.getScreen().hash() != screenHash)
+	    diff.append(String.format(" screen hash %016x, expected %016x;", m.getScreen().hash(), screenHash));
+	return diff.length() == 0 ? null : diff.substring(1);
+    }
+
+    public void write(Path p) throws IOException {
+	if (length < 0)
+	    throw new IllegalStateException("movie is still recording");
+	try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(p)))) {
+	    out.writeInt(MAGIC);
+	    out.writeShort(VERSION);
+	    out.writeByte(compat.ordinal());
+	    out.writeInt(cycles);
+	    out.writeLong(seed);
+	    out.writeShort(low.length);
+	    out.write(low);
+	    out.writeInt(rom.length);
+	    out.write(rom);
+	    out.writeInt(events);
+	    for (int i = 0; i < events; i++) {
+		out.writeInt(eventFrame[i]);
+		out.writeShort(eventMask[i]);
+	    }
+	    out.writeInt(length);
+	    out.writeLong(instructions);
+	    out.writeLong(cpuHash);
+	    out.writeLong(screenHash);
+	}
+    }
+
+    public static Movie read(Path p) throws IOException {
+	try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(p)))) {
+	    if (in.readInt() != MAGIC)
+		throw new IOException("not a movie");
+	    if (in.readShort() != VERSION)
+		throw new IOException("unsupported movie version");
+	    CPU.CompatLevel compat = CPU.CompatLevel.values()[in.readByte()];
+	    int cycles = in.readInt();
+	    long seed = in.readLong();
+	    byte[] low = new byte[in.readUnsignedShort()];
+	    in.readFully(low);
+	    byte[] rom = new byte[in.readInt()];
+	    in.readFully(rom);
+	    Movie m = new Movie(low, rom, compat, cycles, seed, true);
+	    m.events = in.readInt();
+	    m.eventFrame = new int[m.events];
+	    m.eventMask = new int[m.events];
+	    for (int i = 0; i < m.events; i++) {
+		m.eventFrame[i] = in.readInt();
+		m.eventMask[i] = in.readUnsignedShort();
+	    }
+	    m.length = in.readInt();
+	    m.instructions = in.readLong();
+	    m.cpuHash = in.readLong();
+	    m.screenHash = in.readLong();
+	    return m;
+	}
+    }
+
+    /* plays each movie headless at full speed and checks where it ends */
+    public static void main(String[] args) throws Exception {
+	System.setProperty("java.awt.headless", "true");
+	if (args.length == 0) {
+	    System.out.println("usage: java Movie <movie file>...");
+	    System.exit(-1);
+	}
+	int failed = 0;
+	for (String a : args) {
+	    long start = System.nanoTime();
+	    Movie mv = read(Paths.get(a));
+	    Machine m = new Machine(1);
+	    m.play(mv);
+	    m.runFrames(mv.getLength());
+	    String diff = mv.verify(m);
+	    if (diff != null)
+		failed++;
+	    System.out.println(String.format("%s: %s (%d frames, %.1f ms)", a, diff == null ? "ok" : "MISMATCH: " + diff,
+					     mv.getLength(), (System.nanoTime() - start) / 1e6));
+	}
+	System.exit(failed == 0 ? 0 : 1);
+    }
+}
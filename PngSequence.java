@@ -0,0 +1,29 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import javax.imageio.ImageIO;
+
+/* a PNG per distinct frame, named after the path it was given with the
+   frame number added, as game-000042.png for game.png. numbers skipped
+   are frames that repeated the one before */
+public class PngSequence implements FrameEncoder {
+    private final Path dir;
+    private final String base;
+    private final int scale;
+
+    public PngSequence(Path p, int scale) {
+	Path parent = p.toAbsolutePath().getParent();
+	String name = p.getFileName().toString();
+	this.dir = parent;
+	this.base = name.substring(0, name.length() - ".png".length());
+	this.scale = scale;
+    }
+
+    public void frame(long[] frame, long number) throws IOException {
+	Path p = dir.resolve(String.format("%s-%06d.png", base, number));
+	if (!ImageIO.write(FrameEncoder.image(frame, scale), "png", p.toFile()))
+	    throw new IOException("no PNG writer");
+    }
+
+    public void finish(long end) {
+    }
+}
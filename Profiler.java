@@ -0,0 +1,139 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/* counts the instructions a program executes by address and by call
+   stack. the cpu only looks at it from a separate run loop, so a cpu
+   without one runs exactly as before. a call is a 2NNN and a return a
+   00EE, whatever the stack pointer does at its limits; subroutines are
+   named by their entry address and the program's top level is "main".
+   instructions skipped over while the cpu sits in a polling loop are
+   counted apart, under an "[idle]" frame, since those are what tells a
+   busy-waiting program from one that is short of cycles */
+public class Profiler {
+    private static final int MAX_DEPTH = 64; //deeper calls are counted at this depth
+
+    private final long[] hits = new long[CPU.MEM_SIZE];
+    private long executed = 0;
+    private long idle = 0;
+
+    //the call tree; node 0 is the top level
+    private int[] parent = new int[64];
+    private int[] entry = new int[64];
+    private long[] self = new long[64];
+    private long[] idleSelf = new long[64];
+    private int nodes = 1;
+    private final HashMap<Long, Integer> children = new HashMap<>();
+
+    private int current = 0;
+    private int depth = 0;
+    private int overflow = 0; //calls past MAX_DEPTH not yet returned from
+
+    /* one instruction at address */
+    void count(int address) {
+	hits[address]++;
+	self[current]++;
+	executed++;
+    }
+
+    /* n instructions of a polling loop that were skipped instead of run */
+    void idle(int n) {
+	idleSelf[current] += n;
+	idle += n;
+    }
+
+    void enter(int address) {
+	if (depth == MAX_DEPTH) {
+	    overflow++;
+	    return;
+	}
+	Long key = (long)current << 16 | address;
+	Integer child = children.get(key);
+	if (child == null) {
+	    if (nodes == parent.length) {
+		parent = Arrays.copyOf(parent, nodes * 2);
+		entry = Arrays.copyOf(entry, nodes * 2);
+		self = Arrays.copyOf(self, nodes * 2);
+		idleSelf = Arrays.copyOf(idleSelf, nodes * 2);
+	    }
+	    parent[nodes] = current;
+	    entry[nodes] = address;
+	    child = nodes++;
+	    children.put(key, child);
+	}
+	current = child;
+	depth++;
+    }
+
+    void leave() {
+	if (overflow > 0) {
+	    overflow--;
+	} else if (current != 0) {
+	    current = parent[current];
+	    depth--;
+	} //a return with nothing to return from stays at the top level
+    }
+
+    /* back to the top level, after the cpu's stack was reset or restored */
+    void reset() {
+	current = 0;
+	depth = 0;
+	overflow = 0;
+    }
+
+    public long getExecuted() {
+	return executed;
+    }
+
+    public long getIdle() {
+	return idle;
+    }
+
+    /* executions of the instruction at address */
+    public long getHits(int address) {
+	return hits[address];
+    }
+
+    /* one line per executed address: address, executions and share of all
+       executed instructions, in address order */
+    public void writeHeatmap(PrintStream out) {
+	out.println("address,executions,percent");
+	for (int a = 0; a < hits.length; a++)
+	    if (hits[a] != 0)
+		out.println(String.format("%03x,%d,%.3f", a, hits[a], 100.0 * hits[a] / executed));
+    }
+
+    /* the collapsed stack format flame graph tools read: one line per call
+       path, frames separated by semicolons, then its instruction count */
+    public void writeCollapsed(PrintStream out) {
+	StringBuilder sb = new StringBuilder();
+	for (int n = 0; n < nodes; n++) {
+	    if (self[n] == 0 && idleSelf[n] == 0)
+		continue;
+	    sb.setLength(0);
+	    for (int k = n; k != 0; k = parent[k])
+		sb.insert(0, String.format(";sub_%03x", entry[k]));
+	    sb.insert(0, "main");
+	    if (self[n] != 0)
+		out.println(sb + " " + self[n]);
+	    if (idleSelf[n] != 0)
+		out.println(sb + ";[idle] " + idleSelf[n]);
+	}
+    }
+
+    public void writeHeatmap(Path p) throws IOException {
+	try (PrintStream out = new PrintStream(new BufferedOutputStream(Files.newOutputStream(p)))) {
+	    writeHeatmap(out);
+	}
+    }
+
+    public void writeCollapsed(Path p) throws IOException {
+	try (PrintStream out = new PrintStream(new BufferedOutputStream(Files.newOutputStream(p)))) {
+	    writeCollapsed(out);
+	}
+    }
+}
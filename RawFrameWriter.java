@@ -0,0 +1,53 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/* the distinct frames as the screen holds them, for tools that want the
+   exact pixels. after an 8 byte header ("C8FS", version and words per
+   frame, shorts) each record is the frame number and the screen's flags
+   (long each) and then its packed words, big endian. a frame is shown
+   until the next record's number; the last record, with flags -1 and no
+   words, gives the frame the recording ended before */
+public class RawFrameWriter implements FrameEncoder {
+    public static final int MAGIC = 0x43384653; //"C8FS"
+    public static final short VERSION = 1;
+
+    private final FileChannel channel;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect((MachineScreen.WORDS + 2) * 8);
+
+    public RawFrameWriter(Path p) throws IOException {
+	channel = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				   StandardOpenOption.TRUNCATE_EXISTING);
+	buf.putInt(MAGIC);
+	buf.putShort(VERSION);
+	buf.putShort((short)MachineScreen.WORDS);
+	write();
+    }
+
+    public void frame(long[] frame, long number) throws IOException {
+	buf.putLong(number);
+	buf.putLong(frame[MachineScreen.WORDS]);
+	for (int i = 0; i < MachineScreen.WORDS; i++)
+	    buf.putLong(frame[i]);
+	write();
+    }
+
+    public void finish(long end) throws IOException {
+	try {
+	    buf.putLong(end);
+	    buf.putLong(-1);
+	    write();
+	} finally {
+	    channel.close();
+	}
+    }
+
+    private void write() throws IOException {
+	buf.flip();
+	while (buf.hasRemaining())
+	    channel.write(buf);
+	buf.clear();
+    }
+}
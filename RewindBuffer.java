@@ -0,0 +1,148 @@
+import java.nio.ByteBuffer;
+
+/* bounded history of a machine for rewinding. once per frame it records
+   only what changed (registers, the memory pages written, the screen words
+   that differ), with a full snapshot every keyInterval frames so seeking
+   never replays more than that many deltas. records live back to back in
+   one preallocated ring; the oldest are dropped, a keyframe at a time,
+   when the byte cap or the frame limit is reached. the ring always
+   starts with a keyframe: both limits leave room for two keyframe groups
+   however large their records, and a delta that would land in a ring
+   emptied to make room for it is written as a keyframe instead */
+public class RewindBuffer {
+    private final Machine machine;
+    private final int keyInterval;
+    private final byte[] ring;
+    private final ByteBuffer ringBuf;
+    private final ByteBuffer scratch = ByteBuffer.allocate(2 * Machine.STATE_SIZE);
+    private final long[] shadow = new long[MachineScreen.WORDS]; //screen as of the last record
+
+    //index of the records, oldest first starting at head
+    private final int[] offset;
+    private final int[] length;
+    private final boolean[] key;
+    private int head = 0;
+    private int count = 0;
+    private int writePos = 0;
+    private int sinceKey = 0;
+
+    public RewindBuffer(Machine machine, int maxBytes, int maxFrames, int keyInterval) {
+	//a record, keyframe or delta, is never larger than a full state
+	if (keyInterval < 1 || maxFrames <= keyInterval || maxBytes < 2L * keyInterval * Machine.STATE_SIZE)
+	    throw new IllegalArgumentException("rewind buffer too small");
+	this.machine = machine;
+	this.keyInterval = keyInterval;
+	this.ring = new byte[maxBytes];
+	this.ringBuf = ByteBuffer.wrap(ring);
+	this.offset = new int[maxFrames];
+	this.length = new int[maxFrames];
+	this.key = new boolean[maxFrames];
+    }
+
+    /* frames that can currently be rewound */
+    public int available() {
+	return Math.max(0, count - 1);
+    }
+
+    public int bytesUsed() {
+	int used = 0;
+	for (int i = 0; i < count; i++)
+	    used += length[slot(i)];
+	return used;
+    }
+
+    private int slot(int i) {
+	return (head + i) % offset.length;
+    }
+
+    /* records the frame the machine just finished */
+    public void capture() {
+	if (count == 0 || sinceKey + 1 >= keyInterval) {
+	    append(keyframe(), true);
+	    return;
+	}
+	scratch.clear();
+	machine.writeDelta(scratch, shadow);
+	sinceKey++;
+	scratch.flip();
+	if (!append(scratch, false))
+	    append(keyframe(), true); //everything before it had to go
+    }
+
+    private ByteBuffer keyframe() {
+	scratch.clear();
+	machine.snapshot(scratch);
+	machine.getCPU().clearDirtyPages();
+	machine.getScreen().copyWords(shadow);
+	sinceKey = 0;
+	scratch.flip();
+	return scratch;
+    }
+
+    /* false, storing nothing, for a delta with no keyframe left before it */
+    private boolean append(ByteBuffer rec, boolean isKey) {
+	int len = rec.remaining();
+	if (writePos + len > ring.length) {
+	    //the tail is too short, so whatever is stored past here goes first
+	    while (count > 0 && offset[slot(0)] >= writePos)
+		dropOldest();
+	    writePos = 0;
+	}
+	while (count > 0 && (count == offset.length || overlaps(slot(0), writePos, len)))
+	    dropOldest();
+	if (count == 0 && !isKey)
+	    return false;
+	int s = slot(count);
+	rec.get(ring, writePos, len);
+	offset[s] = writePos;
+	length[s] = len;
+	key[s] = isKey;
+	count++;
+	writePos += len;
+	return true;
+    }
+
+    private boolean overlaps(int s, int start, int len) {
+	return offset[s] < start + len && offset[s] + length[s] > start;
+    }
+
+    /* drops the oldest keyframe and the deltas that depend on it */
+    private void dropOldest() {
+	do {
+	    head = slot(1);
+	    count--;
+	} while (count > 0 && !key[head]);
+    }
+
+    /* puts the machine back the given number of frames and forgets the
+       frames after that; returns how many frames were actually rewound */
+    public int rewind(int frames) {
+	if (count == 0)
+	    return 0;
+	frames = Math.min(frames, count - 1);
+	int target = count - 1 - frames;
+	int k = target;
+	while (!key[slot(k)])
+	    k--;
+	machine.restore(record(k));
+	machine.getScreen().copyWords(shadow);
+	for (int i = k + 1; i <= target; i++)
+	    machine.readDelta(record(i), shadow);
+	machine.getCPU().clearDirtyPages();
+	count = target + 1;
+	int last = slot(target);
+	writePos = offset[last] + length[last];
+	sinceKey = target - k;
+	return frames;
+    }
+
+    private ByteBuffer record(int i) {
+	int s = slot(i);
+	ringBuf.limit(offset[s] + length[s]).position(offset[s]);
+	return ringBuf;
+    }
+
+    public void clear() {
+	head = count = writePos = sinceKey = 0;
+    }
+}
@@ -0,0 +1,108 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/* paces emulation in 60 Hz frames: the caller runs a frame's worth of
+   instructions in one batch, then parks here until the frame's deadline.
+   a late frame is made up by running the next ones back to back, but only
+   for a few frames, after which the schedule is reset to now */
+public class Scheduler {
+    public static final int FPS = 60;
+    public static final long FRAME_NANOS = 1000000000L / FPS;
+    private static final int MAX_CATCHUP = 5; //frames
+    public static final int STATE_SIZE = 8; //what snapshot() writes
+
+    private long deadline;
+    private int remainder = 0; //cycles left over from dividing by FPS
+    private int debt = 0; //instructions run past the last budget
+
+    private long windowStart;
+    private long windowCount = 0;
+    private volatile double ips = 0; //measured over roughly a second
+    private volatile long lag = 0; //how late the last frame finished
+
+    public Scheduler() {
+	this.deadline = System.nanoTime();
+	this.windowStart = deadline;
+    }
+
+    /* how many instructions the next frame may run at the given rate */
+    public int frameBudget(int cycles) {
+	remainder += cycles % FPS;
+	int budget = cycles / FPS + remainder / FPS;
+	remainder %= FPS;
+	budget -= debt;
+	debt = 0;
+	return Math.max(budget, 0);
+    }
+
+    /* reports what a frame actually ran, since a block can overshoot */
+    public void spent(int budget, int executed) {
+	if (executed > budget)
+	    debt = executed - budget;
+	windowCount += executed;
+    }
+
+    /* forgets the carry-over, so frames after a reset always split the
+       same way */
+    public void resetBudget() {
+	remainder = 0;
+	debt = 0;
+    }
+
+    /* the budget carry-over is machine state, since it decides where
+       frames end; the wall clock schedule is not */
+    public void snapshot(ByteBuffer buf) {
+	buf.putInt(remainder);
+	buf.putInt(debt);
+    }
+
+    public void restore(ByteBuffer buf) {
+	remainder = buf.getInt();
+	debt = buf.getInt();
+    }
+
+    /* nanoseconds past its deadline the last paced frame was finished */
+    public long getLag() {
+	return lag;
+    }
+
+    /* effective instructions per second, as opposed to the configured rate */
+    public double getInstructionsPerSecond() {
+	return ips;
+    }
+
+    private void measure(long now) {
+	if (now - windowStart >= 1000000000L) {
+	    ips = windowCount * 1e9 / (now - windowStart);
+	    windowStart = now;
+	    windowCount = 0;
+	}
+    }
+
+    /* turbo: go straight to the next frame, keeping the schedule at now so
+       normal pacing picks up smoothly afterwards */
+    public void skipWait() {
+	deadline = System.nanoTime();
+	measure(deadline);
+    }
+
+    /* turbo with nothing to run until a key changes: parks for up to a
+       frame, less if unparked by the keypad, then carries on unpaced */
+    public void waitInput() {
+	LockSupport.parkNanos(FRAME_NANOS);
+	skipWait();
+    }
+
+    public void waitNextFrame() {
+	deadline += FRAME_NANOS;
+	long now = System.nanoTime();
+	measure(now);
+	lag = Math.max(0, now - deadline);
+	if (now - deadline > MAX_CATCHUP * FRAME_NANOS) {
+	    deadline = now; //stalled too long, don't try to catch up
+	    return;
+	}
+	while ((now = System.nanoTime()) - deadline < 0)
+	    LockSupport.parkNanos(deadline - now);
+    }
+}
@@ -0,0 +1,6 @@
+/* where a machine's sound goes. frame() is called on the machine's
+   thread once a frame with the tone for it, so it must only hand the
+   tone on: rendering belongs to the sink's own thread, or to later */
+public interface SoundSink {
+    void frame(Tone t);
+}
@@ -0,0 +1,55 @@
+import java.util.Arrays;
+
+/* what the machine sounds like for a frame: silence, the classic buzzer
+   while the sound timer runs, or with XO-CHIP an F002 pattern played at
+   an FX3A pitch. immutable, so sinks can keep tones as they are handed them */
+public final class Tone {
+    public static final Tone SILENCE = new Tone(false, null, 64);
+
+    public static final double BUZZER_HZ = 440.0;
+
+    private final boolean on;
+    private final byte[] pattern; //16 bytes, 128 one bit samples, or null for the buzzer
+    private final int pitch;
+
+    public Tone(boolean on, byte[] pattern, int pitch) {
+	this.on = on;
+	this.pattern = pattern == null ? null : pattern.clone();
+	this.pitch = pitch & 0xff;
+    }
+
+    public boolean isOn() {
+	return on;
+    }
+
+    public boolean isBuzzer() {
+	return pattern == null;
+    }
+
+    /* the i-th of the pattern's 128 bits, first byte's high bit first */
+    public int bit(int i) {
+	return (pattern[(i >>> 3) & 15] >>> (7 - (i & 7))) & 1;
+    }
+
+    /* XO-CHIP plays the pattern at 4000 bits a second at pitch 64, an
+       octave up or down every 48 steps */
+    public double bitsPerSecond() {
+	return 4000.0 * Math.pow(2.0, (pitch - 64) / 48.0);
+    }
+
+    /* the same waveform, ignoring whether it's on */
+    boolean sameWave(Tone t) {
+	return pitch == t.pitch && Arrays.equals(pattern, t.pattern);
+    }
+
+    public boolean equals(Object o) {
+	if (!(o instanceof Tone))
+	    return false;
+	Tone t = (Tone)o;
+	return on == t.on && sameWave(t);
+    }
+
+    public int hashCode() {
+	return Arrays.hashCode(pattern) * 31 + pitch * 2 + (on ? 1 : 0);
+    }
+}
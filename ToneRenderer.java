@@ -0,0 +1,81 @@
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* turns tones into 16 bit signed mono PCM. each distinct waveform is
+   rendered once into a table holding whole periods of it, and frames are
+   copied out of that table from where the last one left off, so a held
+   tone costs a copy and a change of tone doesn't click. one renderer per
+   stream, used by one thread */
+public class ToneRenderer {
+    private static final int CACHED = 16; //waveforms kept
+    private static final short AMPLITUDE = 8000;
+
+    private final int sampleRate;
+    private final Map<Tone, short[]> tables = new LinkedHashMap<Tone, short[]>(CACHED, 0.75f, true) {
+	    protected boolean removeEldestEntry(Map.Entry<Tone, short[]> e) {
+		return size() > CACHED;
+	    }
+	};
+    private Tone last = null;
+    private short[] table = null;
+    private int phase = 0;
+
+    public ToneRenderer(int sampleRate) {
+	this.sampleRate = sampleRate;
+    }
+
+    public int getSampleRate() {
+	return sampleRate;
+    }
+
+    /* samples in one 60 Hz frame */
+    public int frameSamples() {
+	return sampleRate / Scheduler.FPS;
+    }
+
+    /* writes n samples of t at volume (0 to 1) into out at off, as little
+       endian bytes */
+    public void render(Tone t, float volume, byte[] out, int off, int n) {
+	if (!t.isOn() || volume <= 0) {
+	    Arrays.fill(out, off, off + n * 2, (byte)0);
+	    return;
+	}
+	if (last == null || !t.sameWave(last)) {
+	    short[] next = tables.get(t); //only tones that are on get here
+	    if (next == null) {
+		next = renderTable(t);
+		tables.put(t, next);
+	    }
+	    if (table != null)
+		phase = (int)((long)phase * next.length / table.length); //same point in the new period
+	    table = next;
+	    last = t;
+	}
+	int scale = (int)(volume * 256);
+	for (int i = 0; i < n; i++) {
+	    int s = table[phase] * scale >> 8;
+	    out[off + i * 2] = (byte)s;
+	    out[off + i * 2 + 1] = (byte)(s >> 8);
+	    if (++phase == table.length)
+		phase = 0;
+	}
+    }
+
+    /* one period of the buzzer's square wave, or of the whole pattern */
+    private short[] renderTable(Tone t) {
+	if (t.isBuzzer()) {
+	    int n = Math.max(2, (int)Math.round(sampleRate / Tone.BUZZER_HZ));
+	    short[] w = new short[n];
+	    for (int i = 0; i < n; i++)
+		w[i] = i < n / 2 ? AMPLITUDE : -AMPLITUDE;
+	    return w;
+	}
+	double rate = t.bitsPerSecond();
+	int n = Math.max(1, (int)Math.round(128 * sampleRate / rate));
+	short[] w = new short[n];
+	for (int i = 0; i < n; i++)
+	    w[i] = t.bit((int)(i * rate / sampleRate)) != 0 ? AMPLITUDE : -AMPLITUDE;
+	return w;
+    }
+}
@@ -0,0 +1,149 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/* prints the records of a trace written by TraceRecorder, one line per
+   instruction, keeping only those that pass every filter given. usage:
+   java TraceDump [-n from[-to]] [-a address[-address]] [-o opcode pattern]
+                  [-l last] <trace file>
+   counts are decimal and addresses hex; an opcode pattern is four hex
+   digits where . matches anything, as in d... or f.0a. with -l only the
+   last matching records are printed, for seeing what led up to a crash */
+public class TraceDump {
+    private long fromCount = 0;
+    private long toCount = Long.MAX_VALUE;
+    private int fromAddress = 0;
+    private int toAddress = 0xffff;
+    private int opMask = 0;
+    private int opValue = 0;
+    private int last = 0;
+
+    private boolean matches(ByteBuffer r, int at) {
+	long n = r.getLong(at);
+	int pc = r.getShort(at + 8) & 0xffff;
+	int opcode = r.getShort(at + 10) & 0xffff;
+	return n >= fromCount && n <= toCount && pc >= fromAddress && pc <= toAddress
+	    && (opcode & opMask) == opValue;
+    }
+
+    private static String format(ByteBuffer r, int at) {
+	StringBuilder sb = new StringBuilder();
+	sb.append(String.format("%12d %03x %04x  I=%03x DT=%02x ST=%02x ", r.getLong(at), r.getShort(at + 8) & 0xffff,
+				r.getShort(at + 10) & 0xffff, r.getShort(at + 12) & 0xffff,
+				r.get(at + 14) & 0xff, r.get(at + 15) & 0xff));
+	for (int i = 0; i < 16; i++)
+	    sb.append(String.format(" %02x", r.get(at + 16 + i) & 0xff));
+	return sb.toString();
+    }
+
+    public void dump(FileChannel ch, PrintStream out) throws IOException {
+	ByteBuffer header = ByteBuffer.allocate(TraceRecorder.HEADER_SIZE);
+	while (header.hasRemaining() && ch.read(header) >= 0)
+	    ;
+	header.flip();
+	if (header.remaining() < TraceRecorder.HEADER_SIZE || header.getInt() != TraceRecorder.MAGIC)
+	    throw new IOException("not a trace");
+	if (header.getShort() != TraceRecorder.VERSION || header.getShort() != TraceRecorder.RECORD_SIZE)
+	    throw new IOException("unsupported trace version");
+
+	int size = TraceRecorder.RECORD_SIZE;
+	ByteBuffer tail = last > 0 ? ByteBuffer.allocate(last * size) : null; //a ring of the last matches
+	long kept = 0;
+	ByteBuffer buf = ByteBuffer.allocateDirect(4096 * size);
+	out.println(String.format("%12s %3s %4s  %-5s %-5s %-5s  V0 V1 V2 V3 V4 V5 V6 V7 V8 V9 VA VB VC VD VE VF",
+				  "count", "pc", "op", "I", "DT", "ST"));
+	while (ch.read(buf) >= 0 || buf.position() > 0) {
+	    buf.flip();
+	    while (buf.remaining() >= size) {
+		int at = buf.position();
+		if (matches(buf, at)) {
+		    if (tail == null) {
+			out.println(format(buf, at));
+		    } else {
+			int slot = (int)(kept % last) * size;
+			for (int i = 0; i < size; i++)
+			    tail.put(slot + i, buf.get(at + i));
+			kept++;
+		    }
+		}
+		buf.position(at + size);
+	    }
+	    if (buf.hasRemaining() && ch.position() == ch.size()) {
+		buf.clear();
+		break; //a partial record at the end, from a recorder that didn't close
+	    }
+	    buf.compact();
+	}
+	if (tail != null)
+	    for (long k = Math.max(0, kept - last); k < kept; k++)
+		out.println(format(tail, (int)(k % last) * size));
+    }
+
+    private static void usage() {
+	System.out.println("usage: java TraceDump [-n from[-to]] [-a address[-address]] [-o opcode pattern]");
+	System.out.println("                      [-l last] <trace file>");
+	System.exit(-1);
+    }
+
+    public static void main(String[] args) throws Exception {
+	TraceDump td = new TraceDump();
+	String file = null;
+	try {
+	    for (int i = 0; i < args.length; i++) {
+		switch (args[i]) {
+		case "-n": {
+		    String[] r = args[++i].split("-");
+		    td.fromCount = Long.parseLong(r[0]);
+		    td.toCount = r.length > 1 ? Long.parseLong(r[1]) : td.fromCount;
+		    break;
+		}
+		case "-a": {
+		    String[] r = args[++i].split("-");
+		    td.fromAddress = Integer.parseInt(r[0], 16);
+		    td.toAddress = r.length > 1 ? Integer.parseInt(r[1], 16) : td.fromAddress;
+		    break;
+		}
+		case "-o":
+		    String pat = args[++i];
+		    if (pat.length() != 4)
+			usage();
+		    for (int d = 0; d < 4; d++) {
+			char c = pat.charAt(d);
+			int shift = (3 - d) * 4;
+			if (c != '.') {
+			    td.opMask |= 0xf << shift;
+			    td.opValue |= Integer.parseInt(String.valueOf(c), 16) << shift;
+			}
+		    }
+		    break;
+		case "-l":
+		    td.last = Integer.parseInt(args[++i]);
+		    break;
+		default:
+		    if (file != null)
+			usage();
+		    file = args[i];
+		    break;
+		}
+	    }
+	} catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+	    usage();
+	}
+	if (file == null || td.last < 0)
+	    usage();
+
+	PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16));
+	try (FileChannel ch = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+	    td.dump(ch, out);
+	} catch (IOException e) {
+	    out.flush();
+	    System.out.println("<ERROR> failed reading " + file + ": " + e.getMessage());
+	    System.exit(1);
+	}
+	out.flush();
+    }
+}
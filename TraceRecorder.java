@@ -0,0 +1,136 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/* an execution trace: one fixed size record per instruction, taken
+   before it runs, written by the cpu into preallocated chunks that a
+   writer thread drains to a file. the cpu only waits if every chunk is
+   still queued for writing, so the trace is always complete. a record is
+   the instruction count (long), pc and opcode (short each), I (short),
+   the delay and sound timers (byte each) and V0 to VF, big endian.
+   instructions skipped over in a polling loop leave a gap in the count.
+   TraceDump turns a trace back into text */
+public class TraceRecorder implements Closeable {
+    public static final int MAGIC = 0x43385452; //"C8TR"
+    public static final short VERSION = 1;
+    public static final int RECORD_SIZE = 32;
+    public static final int HEADER_SIZE = 8;
+    private static final int CHUNK_RECORDS = 2048;
+    private static final int CHUNKS = 8;
+
+    private final FileChannel channel;
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(CHUNKS);
+    private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(CHUNKS + 1); //room for the end marker
+    private final ByteBuffer end = ByteBuffer.allocate(0);
+    private final Thread writer;
+    private ByteBuffer chunk;
+    private long records = 0;
+    private volatile IOException error = null;
+
+    public TraceRecorder(Path p) throws IOException {
+	channel = FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				   StandardOpenOption.TRUNCATE_EXISTING);
+	ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+	header.putInt(MAGIC);
+	header.putShort(VERSION);
+	header.putShort((short)RECORD_SIZE);
+	header.flip();
+	while (header.hasRemaining())
+	    channel.write(header);
+	for (int i = 0; i < CHUNKS - 1; i++)
+	    free.add(ByteBuffer.allocateDirect(CHUNK_RECORDS * RECORD_SIZE));
+	chunk = ByteBuffer.allocateDirect(CHUNK_RECORDS * RECORD_SIZE);
+	writer = new Thread(this::drain, "trace writer");
+	writer.setDaemon(true);
+	writer.start();
+    }
+
+    /* the buffer the next record goes into, with room for all of it */
+    ByteBuffer claim() {
+	if (!chunk.hasRemaining()) {
+	    chunk.flip();
+	    put(full, chunk);
+	    chunk = take(free);
+	}
+	records++;
+	return chunk;
+    }
+
+    public long getRecords() {
+	return records;
+    }
+
+    private void drain() {
+	for (;;) {
+	    ByteBuffer b = take(full);
+	    if (b == end)
+		return;
+	    try {
+		while (b.hasRemaining() && error == null)
+		    channel.write(b);
+	    } catch (IOException e) {
+		error = e; //the rest is dropped, so the cpu never waits on a dead file
+	    }
+	    b.clear();
+	    put(free, b);
+	}
+    }
+
+    /* writes out what is left and closes the file; call from the thread
+       that records */
+    public void close() throws IOException {
+	chunk.flip();
+	put(full, chunk);
+	put(full, end);
+	boolean interrupted = false;
+	for (;;) {
+	    try {
+		writer.join();
+		break;
+	    } catch (InterruptedException e) {
+		interrupted = true;
+	    }
+	}
+	if (interrupted)
+	    Thread.currentThread().interrupt();
+	channel.close();
+	if (error != null)
+	    throw error;
+    }
+
+    //the queues never stay full or empty for long, so an interrupt is put off until they're done
+    private static void put(BlockingQueue<ByteBuffer> q, ByteBuffer b) {
+	boolean interrupted = false;
+	for (;;) {
+	    try {
+		q.put(b);
+		break;
+	    } catch (InterruptedException e) {
+		interrupted = true;
+	    }
+	}
+	if (interrupted)
+	    Thread.currentThread().interrupt();
+    }
+
+    private static ByteBuffer take(BlockingQueue<ByteBuffer> q) {
+	boolean interrupted = false;
+	ByteBuffer b;
+	for (;;) {
+	    try {
+		b = q.take();
+		break;
+	    } catch (InterruptedException e) {
+		interrupted = true;
+	    }
+	}
+	if (interrupted)
+	    Thread.currentThread().interrupt();
+	return b;
+    }
+}
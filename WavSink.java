@@ -0,0 +1,67 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/* records a machine's sound for runs without a sound card, such as
+   tests. frame() only keeps the tone; the samples are rendered when the
+   recording is asked for, as PCM or as a WAV file */
+public class WavSink implements SoundSink {
+    private final int sampleRate;
+    private Tone[] frames = new Tone[1024];
+    private int count = 0;
+
+    public WavSink() {
+	this(44100);
+    }
+
+    public WavSink(int sampleRate) {
+	this.sampleRate = sampleRate;
+    }
+
+    public void frame(Tone t) {
+	if (count == frames.length)
+	    frames = Arrays.copyOf(frames, count * 2);
+	frames[count++] = t;
+    }
+
+    public int getFrames() {
+	return count;
+    }
+
+    /* 16 bit signed little endian mono samples, a 60th of a second per frame */
+    public byte[] toPcm() {
+	ToneRenderer r = new ToneRenderer(sampleRate);
+	int n = r.frameSamples();
+	byte[] pcm = new byte[count * n * 2];
+	for (int i = 0; i < count; i++)
+	    r.render(frames[i], 1.0f, pcm, i * n * 2, n);
+	return pcm;
+    }
+
+    public byte[] toWav() {
+	byte[] pcm = toPcm();
+	ByteBuffer b = ByteBuffer.allocate(44 + pcm.length).order(ByteOrder.LITTLE_ENDIAN);
+	b.putInt(0x46464952); //"RIFF"
+	b.putInt(36 + pcm.length);
+	b.putInt(0x45564157); //"WAVE"
+	b.putInt(0x20746d66); //"fmt "
+	b.putInt(16);
+	b.putShort((short)1); //PCM
+	b.putShort((short)1); //mono
+	b.putInt(sampleRate);
+	b.putInt(sampleRate * 2);
+	b.putShort((short)2);
+	b.putShort((short)16);
+	b.putInt(0x61746164); //"data"
+	b.putInt(pcm.length);
+	b.put(pcm);
+	return b.array();
+    }
+
+    public void write(Path p) throws IOException {
+	Files.write(p, toWav());
+    }
+}